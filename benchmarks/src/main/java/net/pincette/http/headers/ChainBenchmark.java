@@ -0,0 +1,132 @@
+package net.pincette.http.headers;
+
+import static com.typesafe.config.ConfigValueFactory.fromAnyRef;
+import static io.netty.handler.codec.http.HttpMethod.GET;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static net.pincette.http.headers.Execution.execution;
+import static net.pincette.http.headers.HeadersBenchmark.headers;
+import static net.pincette.rs.Util.empty;
+import static net.pincette.util.Collections.list;
+import static net.pincette.util.Collections.map;
+import static net.pincette.util.Collections.merge;
+import static net.pincette.util.Pair.pair;
+
+import com.typesafe.config.ConfigFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import net.pincette.http.headers.plugin.Plugin;
+import net.pincette.http.headers.plugin.RequestResult;
+import net.pincette.netty.http.RequestHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class ChainBenchmark {
+  @Param({"async", "inline"})
+  public String mode;
+
+  @Param({"noop", "echo", "change"})
+  public String plugin;
+
+  @Param({"1", "2", "4", "8", "16"})
+  public int plugins;
+
+  private RequestHandler handler;
+  private HttpHeaders requestHeaders;
+
+  private static Plugin plugin(final String type) {
+    return switch (type) {
+      case "echo" -> new EchoPlugin();
+      case "change" -> new ChangePlugin();
+      default -> new NoopPlugin();
+    };
+  }
+
+  @Benchmark
+  public Publisher<ByteBuf> chain() {
+    return handler
+        .apply(
+            new DefaultHttpRequest(HTTP_1_1, GET, "/path", requestHeaders.copy()),
+            empty(),
+            new DefaultHttpResponse(HTTP_1_1, OK))
+        .toCompletableFuture()
+        .join();
+  }
+
+  @Setup
+  public void setup() {
+    requestHeaders = headers(16);
+    handler =
+        Server.handler(
+            IntStream.range(0, plugins).mapToObj(i -> plugin(plugin)).toList(),
+            (request, requestBody, response) -> {
+              response.headers().set("X-Upstream", "value");
+
+              return completedFuture(empty());
+            },
+            execution(ConfigFactory.empty().withValue("execution.mode", fromAnyRef(mode))));
+  }
+
+  /** Adds a header in both phases. */
+  private static class ChangePlugin implements Plugin {
+    private static java.net.http.HttpHeaders add(final java.net.http.HttpHeaders headers) {
+      return java.net.http.HttpHeaders.of(
+          merge(headers.map(), map(pair("X-Change", list("value")))), (k, v) -> true);
+    }
+
+    public CompletionStage<RequestResult> request(final java.net.http.HttpHeaders headers) {
+      return completedFuture(new RequestResult().withRequest(add(headers)));
+    }
+
+    public CompletionStage<java.net.http.HttpHeaders> response(
+        final java.net.http.HttpHeaders headers) {
+      return completedFuture(add(headers));
+    }
+  }
+
+  /** Returns the request headers as they are, like the <code>ImHerePlugin</code>. */
+  private static class EchoPlugin implements Plugin {
+    public CompletionStage<RequestResult> request(final java.net.http.HttpHeaders headers) {
+      return completedFuture(new RequestResult().withRequest(headers));
+    }
+
+    public CompletionStage<java.net.http.HttpHeaders> response(
+        final java.net.http.HttpHeaders headers) {
+      return completedFuture(headers);
+    }
+  }
+
+  /** Returns an empty result. */
+  private static class NoopPlugin implements Plugin {
+    public CompletionStage<RequestResult> request(final java.net.http.HttpHeaders headers) {
+      return completedFuture(new RequestResult());
+    }
+
+    public CompletionStage<java.net.http.HttpHeaders> response(
+        final java.net.http.HttpHeaders headers) {
+      return completedFuture(headers);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package net.pincette.http.headers;
+
+import static net.pincette.http.headers.Headers.convertHeaders;
+import static net.pincette.http.headers.Headers.setHeaders;
+import static net.pincette.util.Collections.list;
+import static net.pincette.util.Collections.map;
+import static net.pincette.util.Collections.merge;
+import static net.pincette.util.Pair.pair;
+
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class HeadersBenchmark {
+  @Param({"8", "32", "128"})
+  public int headers;
+
+  private java.net.http.HttpHeaders changed;
+  private java.net.http.HttpHeaders converted;
+  private HttpHeaders netty;
+  private HttpHeaders target;
+
+  static HttpHeaders headers(final int count) {
+    final HttpHeaders headers = new DefaultHttpHeaders();
+
+    headers.set("Cookie", "session=" + "c".repeat(4096));
+    headers.set("Authorization", "Bearer " + "j".repeat(1024));
+
+    for (int i = 0; i < count - 2; ++i) {
+      headers.set("X-Header-" + i, "value-" + i);
+    }
+
+    return headers;
+  }
+
+  @Benchmark
+  public void clearAndSet() {
+    target.clear();
+    changed.map().forEach(target::set);
+  }
+
+  @Benchmark
+  public java.net.http.HttpHeaders convert() {
+    return convertHeaders(netty);
+  }
+
+  @Benchmark
+  public HttpHeaders deltaOneChange() {
+    setHeaders(target, changed, converted);
+
+    return target;
+  }
+
+  @Benchmark
+  public HttpHeaders deltaOneChangeAgainstNetty() {
+    setHeaders(target, changed);
+
+    return target;
+  }
+
+  @Benchmark
+  public HttpHeaders deltaUnchanged() {
+    setHeaders(target, converted, converted);
+
+    return target;
+  }
+
+  @Setup
+  public void setup() {
+    netty = headers(headers);
+    target = netty.copy();
+    converted = convertHeaders(netty);
+    changed =
+        java.net.http.HttpHeaders.of(
+            merge(converted.map(), map(pair("X-Added", list("added")))), (k, v) -> true);
+  }
+}
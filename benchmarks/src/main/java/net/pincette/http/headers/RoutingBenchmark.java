@@ -0,0 +1,78 @@
+package net.pincette.http.headers;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static net.pincette.http.headers.PrefixTrie.prefixTrie;
+import static net.pincette.http.headers.Server.getForwarder;
+import static net.pincette.rs.Util.empty;
+import static net.pincette.util.Pair.pair;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import net.pincette.netty.http.RequestHandler;
+import net.pincette.util.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class RoutingBenchmark {
+  @Param({"10", "100", "1000"})
+  public int routes;
+
+  private List<Pair<String, RequestHandler>> list;
+  private int next;
+  private PrefixTrie<RequestHandler> trie;
+  private String[] uris;
+
+  private static RequestHandler handler() {
+    return (request, requestBody, response) -> completedFuture(empty());
+  }
+
+  /** The routing as it was before the trie: first match in configuration order. */
+  @Benchmark
+  public Optional<RequestHandler> linear() throws Exception {
+    final String path = new URI(nextUri()).getPath();
+
+    return list.stream().filter(f -> path.startsWith(f.first)).findFirst().map(f -> f.second);
+  }
+
+  private String nextUri() {
+    next = (next + 1) % uris.length;
+
+    return uris[next];
+  }
+
+  @Setup
+  public void setup() {
+    list =
+        IntStream.range(0, routes)
+            .mapToObj(i -> pair("/service" + i + "/api", handler()))
+            .toList();
+    trie = prefixTrie(list.stream());
+    uris =
+        IntStream.range(0, 1024)
+            .mapToObj(i -> "/service" + (i * 7919 % routes) + "/api/resource/" + i + "?q=" + i)
+            .toArray(String[]::new);
+  }
+
+  @Benchmark
+  public Optional<RequestHandler> trie() {
+    return getForwarder(trie, nextUri());
+  }
+}
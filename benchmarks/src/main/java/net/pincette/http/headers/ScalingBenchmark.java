@@ -0,0 +1,120 @@
+package net.pincette.http.headers;
+
+import static com.typesafe.config.ConfigValueFactory.fromAnyRef;
+import static io.netty.buffer.Unpooled.wrappedBuffer;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static java.net.http.HttpClient.newBuilder;
+import static java.net.http.HttpRequest.BodyPublishers.noBody;
+import static java.net.http.HttpResponse.BodyHandlers.ofByteArray;
+import static java.time.Duration.ofMillis;
+import static java.time.Instant.now;
+import static net.pincette.netty.http.Util.simpleResponse;
+import static net.pincette.util.Util.tryToGetSilent;
+
+import com.typesafe.config.ConfigFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpRequest;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import net.pincette.netty.http.HttpServer;
+import net.pincette.rs.Source;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how the throughput of the proxy scales with the number of worker event loops and
+ * acceptors of the <code>server</code> block. Run it with as many client threads as the machine
+ * has cores, e.g. <code>-t 32</code>, so that the clients aren't the bottleneck.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Threads(32)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@State(Scope.Benchmark)
+public class ScalingBenchmark {
+  private static final int PROXY_PORT = 19010;
+  private static final int UPSTREAM_PORT = 19011;
+
+  @Param({"1", "4"})
+  public int acceptors;
+
+  @Param({"auto", "nio"})
+  public String transport;
+
+  @Param({"1", "2", "4", "8", "16", "32"})
+  public int workers;
+
+  private HttpClient client;
+  private Server proxy;
+  private HttpRequest request;
+  private HttpServer upstream;
+
+  private static void waitUntilUp(final HttpClient client, final HttpRequest request) {
+    final Instant deadline = now().plusSeconds(10);
+
+    while (now().isBefore(deadline)
+        && tryToGetSilent(() -> client.send(request, ofByteArray())).isEmpty()) {
+      tryToGetSilent(
+          () -> {
+            Thread.sleep(ofMillis(100).toMillis());
+            return true;
+          });
+    }
+  }
+
+  @Benchmark
+  public byte[] request() throws Exception {
+    return client.send(request, ofByteArray()).body();
+  }
+
+  @Setup
+  public void setup() throws Exception {
+    final byte[] body = new byte[1024];
+
+    upstream =
+        new HttpServer(
+            UPSTREAM_PORT,
+            (req, requestBody, response) ->
+                simpleResponse(response, OK, Source.of(wrappedBuffer(body))));
+    proxy =
+        new Server(
+            PROXY_PORT,
+            ConfigFactory.empty()
+                .withValue("forwardTo", fromAnyRef("http://localhost:" + UPSTREAM_PORT))
+                .withValue("upstream.transport", fromAnyRef("netty"))
+                .withValue("server.acceptors", fromAnyRef(acceptors))
+                .withValue("server.reusePort", fromAnyRef(acceptors > 1))
+                .withValue("server.transport", fromAnyRef(transport))
+                .withValue("server.workers", fromAnyRef(workers)));
+    upstream.run();
+    proxy.run();
+    client = newBuilder().version(Version.HTTP_1_1).build();
+    request =
+        HttpRequest.newBuilder()
+            .uri(new URI("http://localhost:" + PROXY_PORT + "/resource"))
+            .method("GET", noBody())
+            .build();
+    waitUntilUp(client, request);
+  }
+
+  @TearDown
+  public void tearDown() {
+    proxy.close();
+    upstream.close();
+  }
+}
@@ -6,6 +6,10 @@ module application {
   requires net.pincette.rs;
   requires io.netty.buffer;
   requires io.netty.codec.http;
+  requires io.netty.common;
+  requires io.netty.handler;
+  requires io.netty.transport;
+  requires io.netty.transport.classes.epoll;
   requires net.pincette.netty.http;
   requires java.logging;
   requires jdk.unsupported; // For the MongoDB driver.
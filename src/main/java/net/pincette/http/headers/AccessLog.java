@@ -0,0 +1,340 @@
+package net.pincette.http.headers;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.time.Duration.ofMillis;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.logging.Level.WARNING;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.Application.LOGGER;
+import static net.pincette.http.headers.Decorator.layers;
+import static net.pincette.util.Util.tryToDoSilent;
+import static net.pincette.util.Util.tryToGetRethrow;
+
+import com.typesafe.config.Config;
+import io.netty.handler.codec.http.HttpMethod;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import net.pincette.http.headers.plugin.Plugin;
+
+/**
+ * Writes one line per request to the file in the <code>accessLog.file</code> configuration entry.
+ * The request path only copies a few references and numbers into a slot of a bounded ring buffer,
+ * which is claimed with a compare-and-set. A background thread formats the slots and writes them in
+ * batches to a file channel. When the ring is full the record is dropped and counted, so a slow
+ * disk never slows down requests. The records of a batch that can't be written are dropped too.
+ * With <code>accessLog.sample</code> only a fraction of the requests is recorded.
+ *
+ * <p>A line has the start time, the method, the URI, the status code, the duration in
+ * microseconds, the route and the plugin that short-circuited the request. Absent values are
+ * written as <code>-</code>. Non-ASCII characters are written as <code>?</code>.
+ *
+ * @author Werner Donné
+ */
+class AccessLog implements AutoCloseable {
+  private static final String ACCESS_LOG = "accessLog";
+  private static final int BATCH_BYTES = 1024 * 1024;
+  private static final String BUFFER_SIZE = "bufferSize";
+  private static final String FILE = "file";
+  private static final String FLUSH_INTERVAL = "flushInterval";
+  private static final String NONE = "-";
+  private static final String SAMPLE = "sample";
+
+  private final FileChannel channel;
+  private final AtomicLong claimed = new AtomicLong();
+  private final LongAdder dropped = new LongAdder();
+  private final long[] durations;
+  private final long[] ends;
+  private final Duration flushInterval;
+  private final int mask;
+  private final HttpMethod[] methods;
+  private final Path path;
+  private final AtomicLongArray published;
+  private final String[] routes;
+  private final double sample;
+  private final Plugin[] shortCircuits;
+  private final int[] statuses;
+  private final Thread thread;
+  private final String[] uris;
+  private final LongAdder written = new LongAdder();
+  private volatile boolean closed;
+  private volatile long consumed;
+
+  private AccessLog(
+      final Path path, final int size, final double sample, final Duration flushInterval) {
+    this.path = path;
+    this.sample = sample;
+    this.flushInterval = flushInterval;
+    mask = size - 1;
+    durations = new long[size];
+    ends = new long[size];
+    methods = new HttpMethod[size];
+    published = new AtomicLongArray(size);
+    routes = new String[size];
+    shortCircuits = new Plugin[size];
+    statuses = new int[size];
+    uris = new String[size];
+    channel =
+        tryToGetRethrow(() -> FileChannel.open(path, CREATE, WRITE, APPEND)).orElseThrow();
+
+    for (int i = 0; i < size; ++i) {
+      published.set(i, -1);
+    }
+
+    thread = new Thread(this::write, "access-log");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Creates the access log when the configuration has an <code>accessLog.file</code> entry.
+   *
+   * @param config the configuration.
+   * @return The access log or <code>null</code>.
+   */
+  static AccessLog accessLog(final Config config) {
+    return configValue(config::getConfig, ACCESS_LOG)
+        .flatMap(
+            c ->
+                configValue(c::getString, FILE)
+                    .map(
+                        file ->
+                            new AccessLog(
+                                Paths.get(file),
+                                powerOfTwo(configValue(c::getInt, BUFFER_SIZE).orElse(65536)),
+                                configValue(c::getDouble, SAMPLE).orElse(1.0),
+                                configValue(c::getDuration, FLUSH_INTERVAL)
+                                    .orElse(ofMillis(100)))))
+        .orElse(null);
+  }
+
+  private static String name(final Plugin plugin) {
+    return layers(plugin).reduce((p1, p2) -> p2).map(p -> p.getClass().getName()).orElse(NONE);
+  }
+
+  private static int powerOfTwo(final int size) {
+    return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+  }
+
+  private static void put(final StringBuilder line, final ByteBuffer buffer) {
+    final int length = min(line.length(), buffer.remaining());
+
+    for (int i = 0; i < length; ++i) {
+      final char c = line.charAt(i);
+
+      buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+    }
+  }
+
+  public void close() {
+    closed = true;
+    LockSupport.unpark(thread);
+    tryToDoSilent(thread::join);
+    tryToDoSilent(channel::close);
+  }
+
+  long dropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * Formats and writes the records that have been published. Each slot is released as soon as it
+   * is formatted. The records of a batch that can't be written are counted as dropped.
+   *
+   * @return The number of records.
+   */
+  private int drain(final ByteBuffer buffer, final StringBuilder line) {
+    int batch = 0;
+    int count = 0;
+
+    for (long next = consumed; published.get((int) next & mask) == next; ++next) {
+      final int i = (int) next & mask;
+
+      format(i, line);
+      methods[i] = null;
+      routes[i] = null;
+      shortCircuits[i] = null;
+      uris[i] = null;
+      consumed = next + 1;
+
+      if (line.length() > buffer.remaining()) {
+        written(buffer, batch);
+        batch = 0;
+      }
+
+      put(line, buffer);
+      ++batch;
+      ++count;
+    }
+
+    written(buffer, batch);
+
+    return count;
+  }
+
+  /**
+   * Writes the buffer to the file.
+   *
+   * @param buffer the buffer.
+   * @return Whether the write succeeded.
+   */
+  private boolean flush(final ByteBuffer buffer) {
+    boolean result = true;
+
+    buffer.flip();
+
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } catch (IOException e) {
+      LOGGER.log(WARNING, e, () -> "Can't write the access log " + path);
+      result = false;
+    }
+
+    buffer.clear();
+
+    return result;
+  }
+
+  private void format(final int i, final StringBuilder line) {
+    line.setLength(0);
+    line.append(Instant.ofEpochMilli(ends[i] - NANOSECONDS.toMillis(durations[i])))
+        .append(' ')
+        .append(methods[i])
+        .append(' ')
+        .append(uris[i])
+        .append(' ')
+        .append(statuses[i])
+        .append(' ')
+        .append(NANOSECONDS.toMicros(durations[i]))
+        .append(' ')
+        .append(routes[i] != null ? routes[i] : NONE)
+        .append(' ')
+        .append(shortCircuits[i] != null ? name(shortCircuits[i]) : NONE)
+        .append('\n');
+  }
+
+  /**
+   * Returns the recorder for a route.
+   *
+   * @param route the path prefix of the route or <code>null</code> for requests without a route.
+   * @return The recorder.
+   */
+  Recorder recorder(final String route) {
+    return new Recorder(this, route);
+  }
+
+  private void record(
+      final Exchange exchange, final String route, final long start, final Throwable error) {
+    final long end = nanoTime();
+    long sequence;
+
+    do {
+      sequence = claimed.get();
+
+      if (sequence - consumed > mask) {
+        dropped.increment();
+        return;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+    final int i = (int) sequence & mask;
+
+    durations[i] = end - start;
+    ends[i] = currentTimeMillis();
+    methods[i] = exchange.request.method();
+    routes[i] = route;
+    shortCircuits[i] = exchange.shortCircuit;
+    statuses[i] = error != null ? 500 : exchange.response.status().code();
+    uris[i] = exchange.request.uri();
+    published.set(i, sequence);
+  }
+
+  private boolean sampled() {
+    return sample >= 1.0 || ThreadLocalRandom.current().nextDouble() < sample;
+  }
+
+  private void write() {
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_BYTES);
+    final StringBuilder line = new StringBuilder(256);
+
+    while (!closed) {
+      if (drain(buffer, line) == 0) {
+        LockSupport.parkNanos(max(1, flushInterval.toNanos()));
+      }
+    }
+
+    drain(buffer, line);
+  }
+
+  long written() {
+    return written.sum();
+  }
+
+  private void written(final ByteBuffer buffer, final int records) {
+    if (flush(buffer)) {
+      written.add(records);
+    } else {
+      dropped.add(records);
+    }
+  }
+
+  /**
+   * Records the requests of one route. The disabled recorder doesn't touch the requests.
+   *
+   * @author Werner Donné
+   */
+  static class Recorder {
+    static final Recorder DISABLED = new Recorder(null, null);
+
+    private final AccessLog log;
+    private final String route;
+
+    private Recorder(final AccessLog log, final String route) {
+      this.log = log;
+      this.route = route;
+    }
+
+    /**
+     * Adds the recording of the exchange to the stage of its response.
+     *
+     * @param exchange the exchange.
+     * @param start the value that was returned by <code>start</code>.
+     * @param stage the stage of the response.
+     * @param <T> the type of the response.
+     * @return The stage.
+     */
+    <T> CompletionStage<T> recorded(
+        final Exchange exchange, final long start, final CompletionStage<T> stage) {
+      return start != -1
+          ? stage.whenComplete((r, e) -> log.record(exchange, route, start, e))
+          : stage;
+    }
+
+    /**
+     * Marks the start of a request.
+     *
+     * @return The start time or -1 when the request should not be recorded.
+     */
+    long start() {
+      return log != null && log.sampled() ? nanoTime() : -1;
+    }
+  }
+}
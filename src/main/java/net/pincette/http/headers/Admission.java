@@ -0,0 +1,200 @@
+package net.pincette.http.headers;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import static java.lang.Double.doubleToLongBits;
+import static java.lang.Double.longBitsToDouble;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.sqrt;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.logging.Level.WARNING;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.Application.LOGGER;
+import static net.pincette.rs.Util.empty;
+
+import com.typesafe.config.Config;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleUnaryOperator;
+import net.pincette.netty.http.RequestHandler;
+
+/**
+ * Limits the number of concurrent requests of a handler. Requests above the limit are rejected
+ * immediately with the status code 503 and a <code>Retry-After</code> header.
+ *
+ * <p>The limit is fixed by default. With <code>aimd</code> it is decreased multiplicatively when a
+ * request fails or takes longer than the latency target, and increased additively otherwise. With
+ * <code>gradient</code> it follows the ratio between the long-term and the current latency, so it
+ * shrinks when queues start to build up.
+ *
+ * @author Werner Donné
+ */
+class Admission implements RequestHandler {
+  private static final String ADAPTIVE = "adaptive";
+  private static final String ADMISSION = "admission";
+  private static final String AIMD = "aimd";
+  private static final double BACKOFF = 0.9;
+  private static final String GRADIENT = "gradient";
+  private static final String LATENCY = "latency";
+  private static final double LONG_WINDOW = 600.0;
+  private static final String MAX_CONCURRENT = "maxConcurrent";
+  private static final String MIN_CONCURRENT = "minConcurrent";
+  private static final String RETRY_AFTER = "retryAfter";
+  private static final double SMOOTHING = 0.2;
+  private static final double TOLERANCE = 1.5;
+
+  private final LongAdder accepted = new LongAdder();
+  private final String adaptive;
+  private final RequestHandler handler;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final long latency;
+  private final AtomicLong limit;
+  private final AtomicLong longLatency = new AtomicLong();
+  private final int maxConcurrent;
+  private final int minConcurrent;
+  private final String retryAfter;
+  private final LongAdder shed = new LongAdder();
+
+  private Admission(final RequestHandler handler, final Config config) {
+    this.handler = handler;
+    adaptive = configValue(config::getString, ADAPTIVE).filter(Admission::isKnown).orElse(null);
+    latency = configValue(config::getDuration, LATENCY).orElse(Duration.ofSeconds(1)).toNanos();
+    maxConcurrent = configValue(config::getInt, MAX_CONCURRENT).orElse(1000);
+    minConcurrent = configValue(config::getInt, MIN_CONCURRENT).orElse(1);
+    retryAfter =
+        String.valueOf(
+            max(
+                1,
+                configValue(config::getDuration, RETRY_AFTER)
+                    .orElse(Duration.ofSeconds(1))
+                    .toSeconds()));
+    limit = new AtomicLong(doubleToLongBits(maxConcurrent));
+  }
+
+  /**
+   * Puts admission control in front of the handler when the configuration has an <code>admission
+   * </code> block.
+   *
+   * @param handler the handler.
+   * @param config the configuration of the server or of a route.
+   * @param route the path prefix of the route or <code>null</code> for the server.
+   * @param metrics where the accepted and shed counts and the limit are exposed.
+   * @return The wrapped handler or the original one.
+   */
+  static RequestHandler admission(
+      final RequestHandler handler,
+      final Config config,
+      final String route,
+      final Metrics metrics) {
+    return configValue(config::getConfig, ADMISSION)
+        .map(c -> new Admission(handler, c))
+        .map(
+            a -> {
+              metrics.admission(route, a);
+
+              return (RequestHandler) a;
+            })
+        .orElse(handler);
+  }
+
+  private static boolean isKnown(final String adaptive) {
+    final boolean known = AIMD.equals(adaptive) || GRADIENT.equals(adaptive);
+
+    if (!known) {
+      LOGGER.log(WARNING, "Unknown adaptive limit {0}, using a fixed limit", adaptive);
+    }
+
+    return known;
+  }
+
+  private static double update(final AtomicLong value, final DoubleUnaryOperator function) {
+    return longBitsToDouble(
+        value.updateAndGet(
+            bits -> doubleToLongBits(function.applyAsDouble(longBitsToDouble(bits)))));
+  }
+
+  long accepted() {
+    return accepted.sum();
+  }
+
+  /**
+   * Updates the limit with a compare-and-set, so that the completions of concurrent requests don't
+   * wait for each other. The limit and the long-term latency are kept as the bits of a double.
+   *
+   * @param duration the duration of the request in nanoseconds.
+   * @param failed whether the request has failed.
+   */
+  private void adapt(final long duration, final boolean failed) {
+    if (AIMD.equals(adaptive)) {
+      update(
+          limit,
+          current ->
+              failed || duration > latency
+                  ? max(minConcurrent, current * BACKOFF)
+                  : min(
+                      maxConcurrent,
+                      current + (inFlight.get() * 2 >= current ? 1 / current : 0)));
+    } else if (GRADIENT.equals(adaptive)) {
+      final double longTerm =
+          update(longLatency, l -> l == 0 ? duration : l + (duration - l) / LONG_WINDOW);
+      final double gradient = max(0.5, min(1.0, TOLERANCE * longTerm / max(1, duration)));
+
+      update(
+          limit,
+          current ->
+              max(
+                  minConcurrent,
+                  min(
+                      maxConcurrent,
+                      current * (1 - SMOOTHING)
+                          + (current * gradient + sqrt(current)) * SMOOTHING)));
+    }
+  }
+
+  public CompletionStage<Publisher<ByteBuf>> apply(
+      final HttpRequest request,
+      final Publisher<ByteBuf> requestBody,
+      final HttpResponse response) {
+    if (inFlight.incrementAndGet() > longBitsToDouble(limit.get())) {
+      inFlight.decrementAndGet();
+      shed.increment();
+      response.setStatus(SERVICE_UNAVAILABLE);
+      response.headers().set("Retry-After", retryAfter);
+
+      return completedFuture(empty());
+    }
+
+    final long start = nanoTime();
+
+    accepted.increment();
+
+    final CompletionStage<Publisher<ByteBuf>> stage = handler.apply(request, requestBody, response);
+
+    stage.whenComplete(
+        (r, e) -> {
+          inFlight.decrementAndGet();
+
+          if (adaptive != null) {
+            adapt(nanoTime() - start, e != null || response.status().code() >= 500);
+          }
+        });
+
+    return stage;
+  }
+
+  long limit() {
+    return (long) longBitsToDouble(limit.get());
+  }
+
+  long shed() {
+    return shed.sum();
+  }
+}
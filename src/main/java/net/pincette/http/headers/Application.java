@@ -2,6 +2,7 @@ package net.pincette.http.headers;
 
 import static com.typesafe.config.ConfigFactory.defaultApplication;
 import static com.typesafe.config.ConfigFactory.defaultOverrides;
+import static com.typesafe.config.ConfigFactory.invalidateCaches;
 import static java.lang.Integer.parseInt;
 import static java.lang.System.exit;
 import static java.util.logging.Logger.getLogger;
@@ -26,6 +27,12 @@ public class Application {
 
     initLogging();
     LOGGER.info(() -> "Version " + VERSION);
-    new Server(parseInt(args[0]), defaultOverrides().withFallback(defaultApplication())).start();
+    new Server(
+            parseInt(args[0]),
+            () -> {
+              invalidateCaches();
+              return defaultOverrides().withFallback(defaultApplication());
+            })
+        .start();
   }
 }
@@ -0,0 +1,262 @@
+package net.pincette.http.headers;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_GATEWAY;
+import static java.lang.System.nanoTime;
+import static java.util.logging.Level.WARNING;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.Application.LOGGER;
+import static net.pincette.http.headers.BodyBuffer.cancellable;
+import static net.pincette.rs.Util.empty;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import net.pincette.netty.http.RequestHandler;
+
+/**
+ * Spreads the requests of a route over several endpoints. Endpoints that fail to connect or that
+ * return too many 5xx responses are ejected for a while. Only connection and I/O failures count.
+ * Requests that are cancelled or that fail for another reason are not recorded. When all endpoints
+ * are ejected, they are all used again.
+ *
+ * @author Werner Donné
+ */
+class Balancer implements RequestHandler {
+  private static final String BALANCER = "balancer";
+  private static final String CONSECUTIVE_FAILURES = "consecutiveFailures";
+  private static final String DURATION = "duration";
+  private static final String EJECTION = "ejection";
+  private static final String ERROR_RATE = "errorRate";
+  private static final String INTERVAL = "interval";
+  private static final String LEAST_REQUESTS = "leastRequests";
+  private static final String MIN_REQUESTS = "minRequests";
+  private static final String POWER_OF_TWO = "powerOfTwo";
+  private static final String ROUND_ROBIN = "roundRobin";
+
+  private final int consecutiveFailures;
+  private final long ejectionDuration;
+  private final Endpoint[] endpoints;
+  private final double errorRate;
+  private final long interval;
+  private final int minRequests;
+  private final AtomicInteger next = new AtomicInteger();
+  private final Strategy strategy;
+
+  Balancer(
+      final List<URI> endpoints,
+      final Function<URI, RequestHandler> forwarder,
+      final Config config) {
+    this.endpoints =
+        endpoints.stream()
+            .map(uri -> new Endpoint(uri, forwarder.apply(uri)))
+            .toArray(Endpoint[]::new);
+    strategy = strategy(configValue(config::getString, BALANCER).orElse(ROUND_ROBIN));
+
+    final Config ejection =
+        configValue(config::getConfig, EJECTION).orElseGet(ConfigFactory::empty);
+
+    consecutiveFailures = configValue(ejection::getInt, CONSECUTIVE_FAILURES).orElse(5);
+    ejectionDuration =
+        configValue(ejection::getDuration, DURATION).orElse(Duration.ofSeconds(30)).toNanos();
+    errorRate = configValue(ejection::getDouble, ERROR_RATE).orElse(0.5);
+    interval =
+        configValue(ejection::getDuration, INTERVAL).orElse(Duration.ofSeconds(10)).toNanos();
+    minRequests = configValue(ejection::getInt, MIN_REQUESTS).orElse(10);
+  }
+
+  private static boolean isConnectionFailure(final Throwable e) {
+    return e instanceof IOException
+        || (e instanceof CompletionException
+            && e.getCause() != null
+            && isConnectionFailure(e.getCause()));
+  }
+
+  private static Strategy strategy(final String name) {
+    return switch (name) {
+      case LEAST_REQUESTS -> Strategy.LEAST_REQUESTS;
+      case POWER_OF_TWO -> Strategy.POWER_OF_TWO;
+      case ROUND_ROBIN -> Strategy.ROUND_ROBIN;
+      default -> {
+        LOGGER.log(WARNING, "Unknown balancer {0}, using {1}", new Object[] {name, ROUND_ROBIN});
+        yield Strategy.ROUND_ROBIN;
+      }
+    };
+  }
+
+  public CompletionStage<Publisher<ByteBuf>> apply(
+      final HttpRequest request,
+      final Publisher<ByteBuf> requestBody,
+      final HttpResponse response) {
+    final Endpoint endpoint = select();
+
+    endpoint.outstanding.incrementAndGet();
+
+    final CompletionStage<Publisher<ByteBuf>> stage =
+        endpoint.forwarder.apply(request, requestBody, response);
+
+    stage.whenComplete(
+        (body, e) -> {
+          endpoint.outstanding.decrementAndGet();
+
+          if (e == null || isConnectionFailure(e)) {
+            record(endpoint, e != null, e == null && response.status().code() >= 500);
+          }
+        });
+
+    return cancellable(
+        stage,
+        stage.exceptionally(
+            e -> {
+              if (!(e instanceof CancellationException)) {
+                LOGGER.log(WARNING, e, () -> "Request to " + endpoint.uri + " failed");
+              }
+
+              response.setStatus(BAD_GATEWAY);
+
+              return empty();
+            }));
+  }
+
+  private void eject(final Endpoint endpoint, final long now) {
+    endpoint.ejectedUntil = now + ejectionDuration;
+    endpoint.ejected = true;
+    endpoint.failures.set(0);
+    LOGGER.log(WARNING, () -> "Ejected " + endpoint.uri);
+  }
+
+  private boolean isAvailable(final Endpoint endpoint, final long now) {
+    if (endpoint.ejected && now - endpoint.ejectedUntil >= 0) {
+      endpoint.ejected = false;
+    }
+
+    return !endpoint.ejected;
+  }
+
+  private Endpoint leastRequests(final long now) {
+    final int start = next.getAndIncrement() & Integer.MAX_VALUE;
+    Endpoint result = null;
+
+    for (int i = 0; i < endpoints.length; ++i) {
+      final Endpoint endpoint = endpoints[(start + i) % endpoints.length];
+
+      if (isAvailable(endpoint, now)
+          && (result == null || endpoint.outstanding.get() < result.outstanding.get())) {
+        result = endpoint;
+      }
+    }
+
+    return result;
+  }
+
+  private Endpoint powerOfTwo(final long now) {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final Endpoint first = endpoints[random.nextInt(endpoints.length)];
+    final Endpoint second = endpoints[random.nextInt(endpoints.length)];
+    final boolean firstAvailable = isAvailable(first, now);
+    final boolean secondAvailable = isAvailable(second, now);
+
+    if (firstAvailable && secondAvailable) {
+      return first.outstanding.get() <= second.outstanding.get() ? first : second;
+    }
+
+    if (firstAvailable || secondAvailable) {
+      return firstAvailable ? first : second;
+    }
+
+    return roundRobin(now);
+  }
+
+  private void record(final Endpoint endpoint, final boolean failure, final boolean error) {
+    final long now = nanoTime();
+
+    if (now - endpoint.intervalStart >= interval) {
+      endpoint.intervalStart = now;
+      endpoint.requests.set(0);
+      endpoint.errors.set(0);
+    }
+
+    final long requests = endpoint.requests.incrementAndGet();
+    final long errors =
+        failure || error ? endpoint.errors.incrementAndGet() : endpoint.errors.get();
+
+    if (!failure) {
+      endpoint.failures.set(0);
+    } else if (endpoint.failures.incrementAndGet() >= consecutiveFailures) {
+      eject(endpoint, now);
+
+      return;
+    }
+
+    if (requests >= minRequests && errors >= errorRate * requests) {
+      endpoint.intervalStart = now;
+      endpoint.requests.set(0);
+      endpoint.errors.set(0);
+      eject(endpoint, now);
+    }
+  }
+
+  private Endpoint roundRobin(final long now) {
+    final int start = next.getAndIncrement() & Integer.MAX_VALUE;
+
+    for (int i = 0; i < endpoints.length; ++i) {
+      final Endpoint endpoint = endpoints[(start + i) % endpoints.length];
+
+      if (isAvailable(endpoint, now)) {
+        return endpoint;
+      }
+    }
+
+    return null;
+  }
+
+  private Endpoint select() {
+    final long now = nanoTime();
+    final Endpoint endpoint =
+        switch (strategy) {
+          case LEAST_REQUESTS -> leastRequests(now);
+          case POWER_OF_TWO -> powerOfTwo(now);
+          case ROUND_ROBIN -> roundRobin(now);
+        };
+
+    return endpoint != null
+        ? endpoint
+        : endpoints[(next.getAndIncrement() & Integer.MAX_VALUE) % endpoints.length];
+  }
+
+  private enum Strategy {
+    LEAST_REQUESTS,
+    POWER_OF_TWO,
+    ROUND_ROBIN
+  }
+
+  private static class Endpoint {
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final RequestHandler forwarder;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final URI uri;
+    private volatile boolean ejected;
+    private volatile long ejectedUntil;
+    private volatile long intervalStart = nanoTime();
+
+    private Endpoint(final URI uri, final RequestHandler forwarder) {
+      this.uri = uri;
+      this.forwarder = forwarder;
+    }
+  }
+}
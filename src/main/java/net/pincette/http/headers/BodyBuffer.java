@@ -0,0 +1,127 @@
+package net.pincette.http.headers;
+
+import static io.netty.buffer.Unpooled.compositeBuffer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+
+/**
+ * Collects a body in one buffer without copying it. The buffer takes ownership of the chunks.
+ * Bodies that are not needed can be discarded and their stages can be made cancellable.
+ *
+ * @author Werner Donné
+ */
+class BodyBuffer implements Subscriber<ByteBuf> {
+  private final CompositeByteBuf buffer = compositeBuffer(Integer.MAX_VALUE);
+  private final CompletableFuture<ByteBuf> future = new CompletableFuture<>();
+
+  private BodyBuffer() {}
+
+  /**
+   * Consumes the body.
+   *
+   * @param body the body.
+   * @return The buffer with the complete body. The caller should release it.
+   */
+  static CompletionStage<ByteBuf> buffer(final Publisher<ByteBuf> body) {
+    final BodyBuffer subscriber = new BodyBuffer();
+
+    body.subscribe(subscriber);
+
+    return subscriber.future;
+  }
+
+  /**
+   * Returns a copy of the stage of a body that can be cancelled. A <code>CompletableFuture</code>
+   * doesn't pass a cancellation on to the stages it depends on, so <code>cancel</code> is run
+   * instead. A body that the stage still produces after the cancellation is discarded.
+   *
+   * @param stage the stage of the body.
+   * @param cancel the function that cancels the work behind the stage.
+   * @return The copy.
+   */
+  static CompletionStage<Publisher<ByteBuf>> cancellable(
+      final CompletionStage<Publisher<ByteBuf>> stage, final Runnable cancel) {
+    final CompletableFuture<Publisher<ByteBuf>> copy = new CompletableFuture<>();
+
+    stage.whenComplete(
+        (body, e) -> {
+          if (e != null) {
+            copy.completeExceptionally(e);
+          } else if (!copy.complete(body) && body != null) {
+            discard(body);
+          }
+        });
+    copy.whenComplete(
+        (body, e) -> {
+          if (e instanceof CancellationException) {
+            cancel.run();
+          }
+        });
+
+    return copy;
+  }
+
+  /**
+   * Returns a copy of a stage that was derived from the stage of the next layer, of which the
+   * cancellation cancels that stage.
+   *
+   * @param source the stage of the next layer.
+   * @param derived the derived stage.
+   * @return The copy.
+   */
+  static CompletionStage<Publisher<ByteBuf>> cancellable(
+      final CompletionStage<Publisher<ByteBuf>> source,
+      final CompletionStage<Publisher<ByteBuf>> derived) {
+    return cancellable(derived, () -> source.toCompletableFuture().cancel(false));
+  }
+
+  /**
+   * Cancels a body that is not needed, which also lets the upstream connection go.
+   *
+   * @param body the body.
+   */
+  static void discard(final Publisher<ByteBuf> body) {
+    body.subscribe(
+        new Subscriber<>() {
+          public void onComplete() {
+            // Nothing to do.
+          }
+
+          public void onError(final Throwable throwable) {
+            // Nothing to do.
+          }
+
+          public void onNext(final ByteBuf item) {
+            item.release();
+          }
+
+          public void onSubscribe(final Subscription subscription) {
+            subscription.cancel();
+          }
+        });
+  }
+
+  public void onComplete() {
+    future.complete(buffer);
+  }
+
+  public void onError(final Throwable throwable) {
+    buffer.release();
+    future.completeExceptionally(throwable);
+  }
+
+  public void onNext(final ByteBuf item) {
+    buffer.addComponent(true, item);
+  }
+
+  public void onSubscribe(final Subscription subscription) {
+    subscription.request(Long.MAX_VALUE);
+  }
+}
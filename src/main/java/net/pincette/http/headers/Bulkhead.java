@@ -0,0 +1,138 @@
+package net.pincette.http.headers;
+
+import static java.util.concurrent.CompletableFuture.failedFuture;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static java.util.function.Function.identity;
+import static java.util.logging.Level.WARNING;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.Application.LOGGER;
+import static net.pincette.http.headers.Threads.fixedPool;
+import static net.pincette.http.headers.Threads.virtualThreads;
+
+import com.typesafe.config.Config;
+import java.net.http.HttpHeaders;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import net.pincette.http.headers.plugin.Plugin;
+import net.pincette.http.headers.plugin.RequestResult;
+
+/**
+ * Calls a plugin on its own executor, so that a plugin that blocks can only exhaust its own
+ * threads. The executor is a fixed pool or, on Java 21 and later, a virtual thread per call. The
+ * number of calls that haven't completed yet is bounded, including those of which the plugin
+ * returned a stage that is still pending. Calls above the bound are rejected, which is a plugin
+ * failure.
+ *
+ * @author Werner Donné
+ */
+class Bulkhead implements Decorator, AutoCloseable {
+  private static final String BULKHEAD = "bulkhead";
+  private static final String QUEUE = "queue";
+  private static final String THREADS = "threads";
+  private static final String VIRTUAL = "virtual";
+
+  private final Executor executor;
+  private final int limit;
+  private final Semaphore permits;
+  private final Plugin plugin;
+  private final LongAdder rejected = new LongAdder();
+
+  private Bulkhead(final Plugin plugin, final Executor executor, final int limit) {
+    this.plugin = plugin;
+    this.executor = executor;
+    this.limit = limit;
+    permits = new Semaphore(limit);
+  }
+
+  private static Bulkhead bulkhead(final LoadedPlugin plugin, final Config config) {
+    final int queue = configValue(config::getInt, QUEUE).orElse(100);
+    final int threads = configValue(config::getInt, THREADS).orElse(4);
+    final String name = "plugin-" + plugin.folder;
+
+    if (configValue(config::getBoolean, VIRTUAL).orElse(false)) {
+      return virtualThreads()
+          .map(executor -> new Bulkhead(plugin.plugin, executor, queue))
+          .orElseGet(
+              () -> {
+                LOGGER.log(
+                    WARNING,
+                    "Virtual threads are not available for plugin {0}, using {1} threads",
+                    new Object[] {plugin, threads});
+
+                return new Bulkhead(plugin.plugin, fixedPool(name, threads), threads + queue);
+              });
+    }
+
+    return new Bulkhead(plugin.plugin, fixedPool(name, threads), threads + queue);
+  }
+
+  /**
+   * Gives the plugin its own executor when its settings have a <code>bulkhead</code> entry.
+   *
+   * @param plugin the plugin.
+   * @return The wrapped plugin or the original one.
+   */
+  static LoadedPlugin isolated(final LoadedPlugin plugin) {
+    return configValue(plugin.settings::getConfig, BULKHEAD)
+        .map(c -> plugin.withPlugin(bulkhead(plugin, c)))
+        .orElse(plugin);
+  }
+
+  private <T> CompletionStage<T> call(final Supplier<CompletionStage<T>> call) {
+    if (!permits.tryAcquire()) {
+      rejected.increment();
+
+      return failedFuture(new RejectedExecutionException("The bulkhead of " + plugin + " is full"));
+    }
+
+    final CompletionStage<T> result;
+
+    try {
+      result = supplyAsync(call::get, executor).thenCompose(identity());
+    } catch (RejectedExecutionException e) {
+      permits.release();
+      rejected.increment();
+
+      return failedFuture(e);
+    }
+
+    return result.whenComplete((r, e) -> permits.release());
+  }
+
+  /** Lets the calls that are still queued finish and then stops the threads. */
+  public void close() {
+    if (executor instanceof ExecutorService service) {
+      service.shutdown();
+    }
+  }
+
+  public Plugin delegate() {
+    return plugin;
+  }
+
+  long inUse() {
+    return (long) limit - permits.availablePermits();
+  }
+
+  long rejected() {
+    return rejected.sum();
+  }
+
+  public CompletionStage<RequestResult> request(final HttpHeaders headers) {
+    return call(() -> plugin.request(headers));
+  }
+
+  public CompletionStage<HttpHeaders> response(final HttpHeaders headers) {
+    return call(() -> plugin.response(headers));
+  }
+
+  @Override
+  public String toString() {
+    return plugin.toString();
+  }
+}
@@ -0,0 +1,157 @@
+package net.pincette.http.headers;
+
+import static net.pincette.config.Util.configValue;
+
+import java.net.http.HttpHeaders;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import net.pincette.http.headers.plugin.Plugin;
+import net.pincette.http.headers.plugin.RequestResult;
+
+/**
+ * What a plugin declares about itself in its settings. The server uses it to skip the phases a
+ * plugin doesn't implement, to skip the plugin when the request lacks the headers it needs and to
+ * continue on the same thread after a synchronous plugin. Skipped phases don't convert any
+ * headers.
+ *
+ * @author Werner Donné
+ */
+class Capabilities {
+  static final Capabilities DEFAULT = new Capabilities(true, true, List.of(), false);
+
+  private static final String PHASES = "phases";
+  private static final String REQUEST = "request";
+  private static final String REQUIRED_HEADERS = "requiredHeaders";
+  private static final String RESPONSE = "response";
+  private static final String SYNCHRONOUS = "synchronous";
+
+  final boolean request;
+  final List<String> requiredHeaders;
+  final boolean response;
+  final boolean synchronous;
+
+  private Capabilities(
+      final boolean request,
+      final boolean response,
+      final List<String> requiredHeaders,
+      final boolean synchronous) {
+    this.request = request;
+    this.response = response;
+    this.requiredHeaders = requiredHeaders;
+    this.synchronous = synchronous;
+  }
+
+  static Capabilities capabilities(final Plugin plugin) {
+    return plugin instanceof Declared declared ? declared.capabilities : DEFAULT;
+  }
+
+  /**
+   * Attaches the capabilities in the settings of the plugin to it.
+   *
+   * @param plugin the plugin.
+   * @return The plugin with its capabilities or the original one if it declares none.
+   */
+  static LoadedPlugin declared(final LoadedPlugin plugin) {
+    final List<String> phases =
+        configValue(plugin.settings::getStringList, PHASES)
+            .orElseGet(() -> List.of(REQUEST, RESPONSE));
+    final Capabilities capabilities =
+        new Capabilities(
+            phases.contains(REQUEST),
+            phases.contains(RESPONSE),
+            configValue(plugin.settings::getStringList, REQUIRED_HEADERS).orElseGet(List::of),
+            configValue(plugin.settings::getBoolean, SYNCHRONOUS).orElse(false));
+
+    return declared(plugin, capabilities);
+  }
+
+  static LoadedPlugin declared(final LoadedPlugin plugin, final Capabilities capabilities) {
+    return capabilities.equals(DEFAULT)
+        ? plugin
+        : plugin.withPlugin(new Declared(plugin.plugin, capabilities));
+  }
+
+  /**
+   * The capabilities of a group of plugins that runs the response phases of its members in the
+   * response wrapper of its request phase. The group has a request phase when one of its members
+   * has a phase and it never has a response phase of its own. It requires the headers all of its
+   * members require and it is synchronous when all of its members are.
+   *
+   * @param members the capabilities of the members.
+   * @return The capabilities of the group.
+   */
+  static Capabilities group(final List<Capabilities> members) {
+    return new Capabilities(
+        members.stream().anyMatch(c -> c.request || c.response),
+        false,
+        members.get(0).requiredHeaders.stream()
+            .filter(h -> members.stream().allMatch(c -> c.requiredHeaders.contains(h)))
+            .toList(),
+        members.stream().allMatch(c -> c.synchronous));
+  }
+
+  boolean applies(final Headers headers) {
+    for (final String name : requiredHeaders) {
+      if (!headers.contains(name)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  boolean applies(final HttpHeaders headers) {
+    for (final String name : requiredHeaders) {
+      if (headers.firstValue(name).isEmpty()) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    return this == o
+        || (o instanceof Capabilities c
+            && request == c.request
+            && response == c.response
+            && synchronous == c.synchronous
+            && requiredHeaders.equals(c.requiredHeaders));
+  }
+
+  @Override
+  public int hashCode() {
+    return requiredHeaders.hashCode() * 8
+        + (request ? 4 : 0)
+        + (response ? 2 : 0)
+        + (synchronous ? 1 : 0);
+  }
+
+  private static class Declared implements Decorator {
+    private final Capabilities capabilities;
+    private final Plugin plugin;
+
+    private Declared(final Plugin plugin, final Capabilities capabilities) {
+      this.plugin = plugin;
+      this.capabilities = capabilities;
+    }
+
+    public Plugin delegate() {
+      return plugin;
+    }
+
+    public CompletionStage<RequestResult> request(final HttpHeaders headers) {
+      return plugin.request(headers);
+    }
+
+    public CompletionStage<HttpHeaders> response(final HttpHeaders headers) {
+      return plugin.response(headers);
+    }
+
+    @Override
+    public String toString() {
+      return plugin.toString();
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package net.pincette.http.headers;
+
+import static java.util.logging.Level.WARNING;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.Application.LOGGER;
+import static net.pincette.http.headers.Decorator.layers;
+import static net.pincette.http.headers.Execution.execution;
+import static net.pincette.http.headers.ParallelPlugins.parallel;
+import static net.pincette.http.headers.Rules.rules;
+
+import com.typesafe.config.Config;
+import java.util.List;
+import net.pincette.http.headers.AccessLog.Recorder;
+import net.pincette.http.headers.plugin.Plugin;
+import net.pincette.netty.http.RequestHandler;
+
+/**
+ * Composes the plugin chains of the routes once. A route with a <code>plugins</code> list gets the
+ * plugins with those class or folder names, in that order. A folder name stands for all the plugins
+ * of the folder, in the order in which they were loaded. The other routes share the default chain,
+ * which has all plugins in the order in which they were loaded. The <code>parallel</code> groups
+ * apply to every chain. The global header rules come first, followed by those of the route. Each
+ * chain records its requests in the access log, if there is one.
+ *
+ * @author Werner Donné
+ */
+class Chains implements AutoCloseable {
+  private static final String PLUGINS = "plugins";
+
+  private final AccessLog accessLog;
+  private final Config config;
+  private final List<Plugin> defaultChain;
+  private final Execution execution;
+  private final List<LoadedPlugin> plugins;
+  private final Rules rules;
+
+  Chains(final List<LoadedPlugin> plugins, final Config config, final AccessLog accessLog) {
+    this.plugins = plugins;
+    this.config = config;
+    this.accessLog = accessLog;
+    execution = execution(config);
+    defaultChain = chain(plugins);
+    rules = rules(config);
+  }
+
+  private List<Plugin> chain(final List<LoadedPlugin> selected) {
+    return parallel(selected, config).stream().map(p -> p.plugin).toList();
+  }
+
+  /**
+   * Stops the executors of the chains and closes the plugins and their decorators that are
+   * closeable.
+   */
+  public void close() {
+    execution.close();
+    plugins.stream()
+        .flatMap(p -> layers(p.plugin))
+        .filter(AutoCloseable.class::isInstance)
+        .map(AutoCloseable.class::cast)
+        .forEach(Generation::close);
+  }
+
+  /**
+   * Finds the plugin with the class name or all the plugins of the folder with the name.
+   *
+   * @param name the class or folder name.
+   * @return The plugins in the order in which they were loaded.
+   */
+  private List<LoadedPlugin> find(final String name) {
+    final List<LoadedPlugin> found =
+        plugins.stream().filter(p -> p.name.equals(name) || p.folder.equals(name)).toList();
+
+    if (found.isEmpty()) {
+      LOGGER.log(WARNING, "Unknown plugin {0} in route", name);
+    }
+
+    return found;
+  }
+
+  /**
+   * Puts the default chain in front of the forwarder.
+   *
+   * @param forwarder the handler at the end of the chain.
+   * @return The composed handler.
+   */
+  RequestHandler handler(final RequestHandler forwarder) {
+    return Server.handler(defaultChain, rules, forwarder, execution, recorder(null));
+  }
+
+  /**
+   * Puts the chain of the route in front of its forwarder.
+   *
+   * @param route the route.
+   * @param forwarder the handler of the route.
+   * @return The composed handler.
+   */
+  RequestHandler handler(final Route route, final RequestHandler forwarder) {
+    final Rules routeRules = rules.and(rules(route.config));
+
+    return Server.handler(
+        configValue(route.config::getStringList, PLUGINS)
+            .map(names -> names.stream().flatMap(n -> find(n).stream()).toList())
+            .map(
+                selected -> {
+                  LOGGER.info(() -> "Plugins for route " + route.pathPrefix + ": " + selected);
+
+                  return chain(selected);
+                })
+            .orElse(defaultChain),
+        routeRules,
+        forwarder,
+        execution,
+        recorder(route.pathPrefix));
+  }
+
+  private Recorder recorder(final String route) {
+    return accessLog != null ? accessLog.recorder(route) : Recorder.DISABLED;
+  }
+}
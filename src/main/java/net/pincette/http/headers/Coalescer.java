@@ -0,0 +1,239 @@
+package net.pincette.http.headers;
+
+import static io.netty.handler.codec.http.HttpMethod.GET;
+import static io.netty.handler.codec.http.HttpMethod.HEAD;
+import static io.netty.handler.codec.http.HttpUtil.getContentLength;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.BodyBuffer.cancellable;
+
+import com.typesafe.config.Config;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import net.pincette.netty.http.RequestHandler;
+import net.pincette.rs.Source;
+
+/**
+ * Lets concurrent identical <code>GET</code> and <code>HEAD</code> requests share one upstream
+ * call. Requests are identical when they have the same method, URI and values for the configured
+ * headers. The first request is sent upstream and the others wait for it. Its body is buffered and
+ * every request takes its own view of it when it gets the response. The buffer is released when
+ * all of them have taken their view.
+ *
+ * <p>Only responses with a <code>Content-Length</code> up to the configured maximum body size are
+ * shared. Other responses are streamed to the first request and the waiting requests are sent
+ * upstream on their own.
+ *
+ * <p>Nothing is kept after the upstream call has completed, so this is not a cache. Cancelling a
+ * request doesn't cancel the upstream call, because it may be shared. The view of the cancelled
+ * request is discarded when the response arrives.
+ *
+ * @author Werner Donné
+ */
+class Coalescer implements RequestHandler {
+  private static final String COALESCE = "coalesce";
+  private static final String HEADERS = "headers";
+  private static final String MAX_BODY_SIZE = "maxBodySize";
+
+  private final LongAdder coalesced = new LongAdder();
+  private final Map<List<Object>, Flight> flights = new ConcurrentHashMap<>();
+  private final RequestHandler handler;
+  private final List<String> headers;
+  private final long maxBodySize;
+
+  private Coalescer(final RequestHandler handler, final Config config) {
+    this.handler = handler;
+    headers = configValue(config::getStringList, HEADERS).orElseGet(List::of);
+    maxBodySize = configValue(config::getBytes, MAX_BODY_SIZE).orElse(1024L * 1024);
+  }
+
+  /**
+   * Coalesces the requests of a route when its configuration has a <code>coalesce</code> block.
+   *
+   * @param handler the forwarder of the route.
+   * @param config the configuration of the route.
+   * @param route the path prefix of the route.
+   * @param metrics where the number of coalesced requests is exposed.
+   * @return The wrapped forwarder or the original one.
+   */
+  static RequestHandler coalesced(
+      final RequestHandler handler,
+      final Config config,
+      final String route,
+      final Metrics metrics) {
+    return configValue(config::getConfig, COALESCE)
+        .map(c -> new Coalescer(handler, c))
+        .map(
+            c -> {
+              metrics.coalescer(route, c);
+
+              return (RequestHandler) c;
+            })
+        .orElse(handler);
+  }
+
+  /**
+   * The waiting requests are sent upstream on their own.
+   *
+   * @return The body for the first request.
+   */
+  private CompletionStage<Publisher<ByteBuf>> alone(
+      final List<Object> key, final Flight flight, final Publisher<ByteBuf> body) {
+    flights.remove(key);
+    flight.future.complete(null);
+
+    return completedFuture(body);
+  }
+
+  public CompletionStage<Publisher<ByteBuf>> apply(
+      final HttpRequest request,
+      final Publisher<ByteBuf> requestBody,
+      final HttpResponse response) {
+    if (!GET.equals(request.method()) && !HEAD.equals(request.method())) {
+      return handler.apply(request, requestBody, response);
+    }
+
+    final List<Object> key = key(request);
+    final Flight created = new Flight();
+    final Flight flight = flights.compute(key, (k, f) -> f != null ? f.join() : created);
+
+    if (flight != created) {
+      coalesced.increment();
+
+      return cancellable(
+          flight.future.thenCompose(
+              result ->
+                  result != null
+                      ? completedFuture(result.apply(response))
+                      : handler.apply(request, requestBody, response)),
+          () -> {});
+    }
+
+    return cancellable(
+        handler
+            .apply(request, requestBody, response)
+            .thenCompose(
+                body ->
+                    isShareable(response)
+                        ? share(key, flight, response, body)
+                        : alone(key, flight, body))
+            .whenComplete(
+                (body, e) -> {
+                  if (e != null) {
+                    flights.remove(key);
+                    flight.future.completeExceptionally(e);
+                  }
+                }),
+        () -> {});
+  }
+
+  long coalesced() {
+    return coalesced.sum();
+  }
+
+  private boolean isShareable(final HttpResponse response) {
+    final long length = getContentLength(response, -1L);
+
+    return length >= 0 && length <= maxBodySize;
+  }
+
+  private List<Object> key(final HttpRequest request) {
+    final List<Object> key = new ArrayList<>(headers.size() + 2);
+
+    key.add(request.method().name());
+    key.add(request.uri());
+    headers.forEach(h -> key.add(request.headers().getAll(h)));
+
+    return key;
+  }
+
+  /**
+   * Buffers the body and hands it to the waiting requests. No requests can join the flight after it
+   * has been removed, so the number of views is known.
+   *
+   * @return The body for the first request.
+   */
+  private CompletionStage<Publisher<ByteBuf>> share(
+      final List<Object> key,
+      final Flight flight,
+      final HttpResponse response,
+      final Publisher<ByteBuf> body) {
+    return BodyBuffer.buffer(body)
+        .thenApply(
+            buffer -> {
+              flights.remove(key);
+
+              final Result result =
+                  new Result(
+                      response.status(), response.headers().copy(), buffer, flight.waiters + 1);
+
+              flight.future.complete(result);
+
+              return result.share();
+            });
+  }
+
+  private static class Flight {
+    private final CompletableFuture<Result> future = new CompletableFuture<>();
+    private int waiters;
+
+    private Flight join() {
+      ++waiters;
+
+      return this;
+    }
+  }
+
+  private static class Result {
+    private final ByteBuf body;
+    private final HttpHeaders headers;
+    private final AtomicInteger remaining;
+    private final HttpResponseStatus status;
+
+    private Result(
+        final HttpResponseStatus status,
+        final HttpHeaders headers,
+        final ByteBuf body,
+        final int views) {
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+      remaining = new AtomicInteger(views);
+    }
+
+    private Publisher<ByteBuf> apply(final HttpResponse response) {
+      response.setStatus(status);
+      response.headers().set(headers);
+
+      return share();
+    }
+
+    /**
+     * Takes a view of the body for one request. The buffer itself is released after the last view
+     * has been taken. Each view is released when it is written.
+     *
+     * @return The view.
+     */
+    private Publisher<ByteBuf> share() {
+      final ByteBuf view = body.retainedDuplicate();
+
+      if (remaining.decrementAndGet() == 0) {
+        body.release();
+      }
+
+      return Source.of(view);
+    }
+  }
+}
@@ -0,0 +1,593 @@
+package net.pincette.http.headers;
+
+import static io.netty.handler.codec.http.HttpMethod.HEAD;
+import static java.lang.Double.parseDouble;
+import static java.lang.Long.parseLong;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.zip.Deflater.NO_FLUSH;
+import static java.util.zip.Deflater.SYNC_FLUSH;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.BodyBuffer.cancellable;
+import static net.pincette.http.headers.BodyBuffer.discard;
+import static net.pincette.util.Util.tryToGetSilent;
+
+import com.typesafe.config.Config;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import net.pincette.netty.http.RequestHandler;
+import net.pincette.rs.Source;
+
+/**
+ * Compresses the response bodies of a route with <code>gzip</code> or <code>deflate</code>,
+ * according to the <code>Accept-Encoding</code> header of the request. It runs after the response
+ * phase of the plugins. The body is compressed chunk by chunk as it streams through, and every
+ * chunk is flushed, so streaming responses don't stall. Only bodies with an allowed content type
+ * and at least the minimum size are compressed. Bodies that are already encoded and responses with
+ * <code>Cache-Control: no-transform</code> are left alone. A strong <code>ETag</code> becomes weak,
+ * because the compressed representation is not byte-for-byte the same.
+ *
+ * <p>With a <code>cache</code> block the compressed bodies of responses with a strong <code>ETag
+ * </code> and a <code>Content-Length</code> below the entry limit are kept per URI, validator and
+ * encoding. The memory of the cache is bounded and the least recently used entries are evicted
+ * first.
+ *
+ * @author Werner Donné
+ */
+class Compression implements RequestHandler, AutoCloseable {
+  private static final String ACCEPT_ENCODING = "Accept-Encoding";
+  private static final int BLOCK = 8192;
+  private static final String CACHE = "cache";
+  private static final String CACHE_CONTROL = "Cache-Control";
+  private static final String COMPRESSION = "compression";
+  private static final String CONTENT_ENCODING = "Content-Encoding";
+  private static final String CONTENT_LENGTH = "Content-Length";
+  private static final String CONTENT_TYPE = "Content-Type";
+  private static final String CONTENT_TYPES = "contentTypes";
+  private static final List<String> DEFAULT_CONTENT_TYPES =
+      List.of(
+          "application/javascript",
+          "application/json",
+          "application/problem+json",
+          "application/xml",
+          "image/svg+xml",
+          "text/css",
+          "text/csv",
+          "text/html",
+          "text/javascript",
+          "text/plain",
+          "text/xml");
+  private static final String DEFLATE = "deflate";
+  private static final String ETAG = "ETag";
+  private static final String GZIP = "gzip";
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+  private static final String LEVEL = "level";
+  private static final String MAX_ENTRY_SIZE = "maxEntrySize";
+  private static final String MAX_MEMORY = "maxMemory";
+  private static final String MIN_SIZE = "minSize";
+  private static final String NO_TRANSFORM = "no-transform";
+  private static final String VARY = "Vary";
+  private static final String WEAK = "W/";
+
+  private final Map<String, Entry> cache;
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder compressed = new LongAdder();
+  private final Set<String> contentTypes;
+  private final RequestHandler handler;
+  private final LongAdder input = new LongAdder();
+  private final int level;
+  private final long maxEntrySize;
+  private final long maxMemory;
+  private final long minSize;
+  private final LongAdder output = new LongAdder();
+  private long memory;
+
+  private Compression(final RequestHandler handler, final Config config) {
+    final Config cacheConfig = configValue(config::getConfig, CACHE).orElse(null);
+
+    this.handler = handler;
+    contentTypes =
+        Set.copyOf(
+            configValue(config::getStringList, CONTENT_TYPES).orElse(DEFAULT_CONTENT_TYPES));
+    level = configValue(config::getInt, LEVEL).orElse(6);
+    minSize = configValue(config::getBytes, MIN_SIZE).orElse(1024L);
+    cache = cacheConfig != null ? new LinkedHashMap<>(16, 0.75f, true) : null;
+    maxMemory =
+        cacheConfig != null
+            ? configValue(cacheConfig::getBytes, MAX_MEMORY).orElse(16L * 1024 * 1024)
+            : 0;
+    maxEntrySize =
+        cacheConfig != null
+            ? configValue(cacheConfig::getBytes, MAX_ENTRY_SIZE).orElse(1024L * 1024)
+            : 0;
+  }
+
+  /**
+   * Compresses the responses of a route when its configuration has a <code>compression</code>
+   * block.
+   *
+   * @param handler the handler of the route, including its plugin chain.
+   * @param config the configuration of the route.
+   * @param route the path prefix of the route.
+   * @param metrics where the compression counts are exposed.
+   * @return The wrapped handler or the original one.
+   */
+  static RequestHandler compressed(
+      final RequestHandler handler,
+      final Config config,
+      final String route,
+      final Metrics metrics) {
+    return configValue(config::getConfig, COMPRESSION)
+        .map(c -> new Compression(handler, c))
+        .map(
+            c -> {
+              metrics.compression(route, c);
+
+              return (RequestHandler) c;
+            })
+        .orElse(handler);
+  }
+
+  private static long contentLength(final HttpResponse response) {
+    return tryToGetSilent(() -> parseLong(response.headers().get(CONTENT_LENGTH))).orElse(-1L);
+  }
+
+  /**
+   * Selects the encoding from the <code>Accept-Encoding</code> header. The quality values are only
+   * used to exclude an encoding. When both are accepted, <code>gzip</code> is preferred.
+   *
+   * @param request the request.
+   * @return The encoding or <code>null</code>.
+   */
+  private static String encoding(final HttpRequest request) {
+    final String value = request.headers().get(ACCEPT_ENCODING);
+    boolean deflate = false;
+
+    if (value == null || HEAD.equals(request.method())) {
+      return null;
+    }
+
+    for (final String part : value.split(",")) {
+      final String[] fields = part.split(";");
+      final String coding = fields[0].trim().toLowerCase();
+
+      if (!isRejected(fields)) {
+        if (coding.equals(GZIP) || coding.equals("*")) {
+          return GZIP;
+        }
+
+        deflate |= coding.equals(DEFLATE);
+      }
+    }
+
+    return deflate ? DEFLATE : null;
+  }
+
+  private static boolean isRejected(final String[] fields) {
+    for (int i = 1; i < fields.length; ++i) {
+      final String field = fields[i].trim();
+
+      if (field.startsWith("q=")
+          && tryToGetSilent(() -> parseDouble(field.substring(2))).orElse(1.0) == 0) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static String mediaType(final String contentType) {
+    final int semicolon = contentType.indexOf(';');
+
+    return (semicolon != -1 ? contentType.substring(0, semicolon) : contentType)
+        .trim()
+        .toLowerCase();
+  }
+
+  /**
+   * Adds <code>Accept-Encoding</code> to the <code>Vary</code> header of the response, unless it
+   * is already there.
+   *
+   * @param response the response.
+   */
+  private static void vary(final HttpResponse response) {
+    for (final String value : response.headers().getAll(VARY)) {
+      for (final String name : value.split(",")) {
+        final String trimmed = name.trim();
+
+        if (trimmed.equals("*") || trimmed.equalsIgnoreCase(ACCEPT_ENCODING)) {
+          return;
+        }
+      }
+    }
+
+    response.headers().add(VARY, ACCEPT_ENCODING);
+  }
+
+  public CompletionStage<Publisher<ByteBuf>> apply(
+      final HttpRequest request,
+      final Publisher<ByteBuf> requestBody,
+      final HttpResponse response) {
+    final String encoding = encoding(request);
+    final CompletionStage<Publisher<ByteBuf>> stage = handler.apply(request, requestBody, response);
+
+    return cancellable(
+        stage, stage.thenCompose(body -> compress(request, response, body, encoding)));
+  }
+
+  long cacheHits() {
+    return cacheHits.sum();
+  }
+
+  /** Releases the cached bodies. */
+  public synchronized void close() {
+    if (cache != null) {
+      cache.values().forEach(e -> e.body.release());
+      cache.clear();
+    }
+
+    memory = 0;
+  }
+
+  private CompletionStage<Publisher<ByteBuf>> compress(
+      final HttpRequest request,
+      final HttpResponse response,
+      final Publisher<ByteBuf> body,
+      final String encoding) {
+    if (!isCompressible(response)) {
+      return completedFuture(body);
+    }
+
+    final long length = contentLength(response);
+
+    if (length != -1 && length < minSize) {
+      return completedFuture(body);
+    }
+
+    vary(response);
+
+    if (encoding == null) {
+      return completedFuture(body);
+    }
+
+    final String etag = response.headers().get(ETAG);
+    final String key =
+        cache != null
+                && etag != null
+                && !etag.startsWith(WEAK)
+                && length != -1
+                && length <= maxEntrySize
+                && response.status().code() == 200
+            ? request.uri() + ' ' + etag + ' ' + encoding
+            : null;
+
+    compressed.increment();
+    response.headers().set(CONTENT_ENCODING, encoding);
+    response.headers().remove(CONTENT_LENGTH);
+
+    if (etag != null && !etag.startsWith(WEAK)) {
+      response.headers().set(ETAG, WEAK + etag);
+    }
+
+    if (key == null) {
+      return completedFuture(new Compressor(body, encoding));
+    }
+
+    final ByteBuf cached = get(key);
+
+    if (cached != null) {
+      cacheHits.increment();
+      discard(body);
+      response.headers().set(CONTENT_LENGTH, cached.readableBytes());
+
+      return completedFuture(Source.of(cached));
+    }
+
+    return BodyBuffer.buffer(new Compressor(body, encoding))
+        .thenApply(
+            buffer -> {
+              final ByteBuf stored =
+                  PooledByteBufAllocator.DEFAULT.directBuffer(buffer.readableBytes());
+
+              stored.writeBytes(buffer);
+              buffer.release();
+              response.headers().set(CONTENT_LENGTH, stored.readableBytes());
+
+              final ByteBuf duplicate = stored.retainedDuplicate();
+
+              put(key, stored);
+
+              return Source.of(duplicate);
+            });
+  }
+
+  long compressed() {
+    return compressed.sum();
+  }
+
+  /**
+   * Looks up a compressed body.
+   *
+   * @param key the key.
+   * @return A retained duplicate of the body or <code>null</code>.
+   */
+  private synchronized ByteBuf get(final String key) {
+    final Entry entry = cache.get(key);
+
+    return entry != null ? entry.body.retainedDuplicate() : null;
+  }
+
+  long input() {
+    return input.sum();
+  }
+
+  private boolean isCompressible(final HttpResponse response) {
+    final int status = response.status().code();
+    final String contentType = response.headers().get(CONTENT_TYPE);
+    final String cacheControl = response.headers().get(CACHE_CONTROL);
+
+    return status >= 200
+        && status != 204
+        && status != 206
+        && status != 304
+        && contentType != null
+        && contentTypes.contains(mediaType(contentType))
+        && !response.headers().contains(CONTENT_ENCODING)
+        && (cacheControl == null || !cacheControl.toLowerCase().contains(NO_TRANSFORM));
+  }
+
+  synchronized long memory() {
+    return memory;
+  }
+
+  long output() {
+    return output.sum();
+  }
+
+  /**
+   * Stores a compressed body. The cache takes over the reference of the caller.
+   *
+   * @param key the key.
+   * @param body the compressed body.
+   */
+  private synchronized void put(final String key, final ByteBuf body) {
+    final Entry entry = new Entry(body);
+    final Entry previous = cache.remove(key);
+
+    if (previous != null) {
+      memory -= previous.size;
+      previous.body.release();
+    }
+
+    final Iterator<Entry> iterator = cache.values().iterator();
+
+    while (memory + entry.size > maxMemory && iterator.hasNext()) {
+      final Entry eldest = iterator.next();
+
+      iterator.remove();
+      memory -= eldest.size;
+      eldest.body.release();
+    }
+
+    cache.put(key, entry);
+    memory += entry.size;
+  }
+
+  /**
+   * Compresses a body as it streams through. Every chunk yields at most one compressed chunk. When
+   * the compressed chunk is empty, another one is requested from the body instead. The final
+   * chunk, with the end of the stream, is emitted when the body completes and there is demand for
+   * it.
+   */
+  private class Compressor implements Publisher<ByteBuf>, Subscriber<ByteBuf>, Subscription {
+    private final Publisher<ByteBuf> body;
+    private final CRC32 crc;
+    private final Deflater deflater;
+    private long demand;
+    private boolean ended;
+    private boolean finishing;
+    private boolean headerWritten;
+    private Subscriber<? super ByteBuf> subscriber;
+    private Subscription subscription;
+
+    private Compressor(final Publisher<ByteBuf> body, final String encoding) {
+      final boolean gzip = encoding.equals(GZIP);
+
+      this.body = body;
+      deflater = new Deflater(level, gzip);
+      crc = gzip ? new CRC32() : null;
+      headerWritten = !gzip;
+    }
+
+    public void cancel() {
+      end();
+      subscription.cancel();
+    }
+
+    private synchronized ByteBuf deflate(final ByteBuf chunk) {
+      if (ended) {
+        return null;
+      }
+
+      final ByteBuf out = PooledByteBufAllocator.DEFAULT.buffer(chunk.readableBytes() / 2 + 64);
+      final ByteBuffer in = chunk.nioBuffer();
+
+      header(out);
+
+      if (crc != null) {
+        crc.update(in.duplicate());
+      }
+
+      deflater.setInput(in);
+      drain(out, false);
+
+      return out;
+    }
+
+    /**
+     * Writes the compressed data to the buffer. Without <code>finish</code> the data is flushed, so
+     * that everything that was given so far can be decompressed.
+     */
+    private void drain(final ByteBuf out, final boolean finish) {
+      while (true) {
+        out.ensureWritable(BLOCK);
+
+        final int available = out.writableBytes();
+        final int written =
+            deflater.deflate(
+                out.nioBuffer(out.writerIndex(), available), finish ? NO_FLUSH : SYNC_FLUSH);
+
+        out.writerIndex(out.writerIndex() + written);
+
+        if (finish ? deflater.finished() : written < available) {
+          return;
+        }
+      }
+    }
+
+    private void emit(final ByteBuf out) {
+      synchronized (this) {
+        --demand;
+      }
+
+      output.add(out.readableBytes());
+      subscriber.onNext(out);
+    }
+
+    private synchronized void end() {
+      if (!ended) {
+        ended = true;
+        deflater.end();
+      }
+    }
+
+    private void finish() {
+      final ByteBuf out = trailer();
+
+      if (out != null) {
+        emit(out);
+        subscriber.onComplete();
+      }
+    }
+
+    private void header(final ByteBuf out) {
+      if (!headerWritten) {
+        out.writeBytes(GZIP_HEADER);
+        headerWritten = true;
+      }
+    }
+
+    public void onComplete() {
+      final boolean now;
+
+      synchronized (this) {
+        now = demand > 0;
+        finishing = !now;
+      }
+
+      if (now) {
+        finish();
+      }
+    }
+
+    public void onError(final Throwable throwable) {
+      end();
+      subscriber.onError(throwable);
+    }
+
+    public void onNext(final ByteBuf chunk) {
+      input.add(chunk.readableBytes());
+
+      final ByteBuf out = deflate(chunk);
+
+      chunk.release();
+
+      if (out == null) {
+        return;
+      }
+
+      if (out.readableBytes() == 0) {
+        out.release();
+        subscription.request(1);
+      } else {
+        emit(out);
+      }
+    }
+
+    public void onSubscribe(final Subscription subscription) {
+      this.subscription = subscription;
+      subscriber.onSubscribe(this);
+    }
+
+    public void request(final long n) {
+      final boolean now;
+
+      synchronized (this) {
+        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        now = finishing;
+        finishing = false;
+      }
+
+      if (now) {
+        finish();
+      } else {
+        subscription.request(n);
+      }
+    }
+
+    public void subscribe(final Subscriber<? super ByteBuf> subscriber) {
+      this.subscriber = subscriber;
+      body.subscribe(this);
+    }
+
+    /**
+     * Ends the stream. For <code>gzip</code> the checksum and the size follow the compressed data.
+     *
+     * @return The last chunk or <code>null</code> when the compressor was already ended.
+     */
+    private synchronized ByteBuf trailer() {
+      if (ended) {
+        return null;
+      }
+
+      final ByteBuf out = PooledByteBufAllocator.DEFAULT.buffer(BLOCK);
+
+      header(out);
+      deflater.finish();
+      drain(out, true);
+
+      if (crc != null) {
+        out.writeIntLE((int) crc.getValue());
+        out.writeIntLE((int) deflater.getBytesRead());
+      }
+
+      end();
+
+      return out;
+    }
+  }
+
+  private static class Entry {
+    private final ByteBuf body;
+    private final int size;
+
+    private Entry(final ByteBuf body) {
+      this.body = body;
+      size = body.readableBytes();
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package net.pincette.http.headers;
+
+import java.util.Objects;
+import java.util.stream.Stream;
+import net.pincette.http.headers.plugin.Plugin;
+
+/**
+ * A plugin that adds behaviour to another one.
+ *
+ * @author Werner Donné
+ */
+interface Decorator extends Plugin {
+  /**
+   * Returns the plugin and the plugins it decorates, from the outside in.
+   *
+   * @param plugin the plugin.
+   * @return The stream of plugins.
+   */
+  static Stream<Plugin> layers(final Plugin plugin) {
+    return Stream.iterate(
+        plugin, Objects::nonNull, p -> p instanceof Decorator d ? d.delegate() : null);
+  }
+
+  Plugin delegate();
+}
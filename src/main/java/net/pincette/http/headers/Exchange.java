@@ -0,0 +1,56 @@
+package net.pincette.http.headers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Publisher;
+import net.pincette.http.headers.plugin.Plugin;
+
+/**
+ * The state of one request as it goes through the plugin chain. It holds the stage of the handler
+ * at the end of the chain, so that cancelling the request can cancel it.
+ *
+ * @author Werner Donné
+ */
+class Exchange {
+  final HttpRequest request;
+  final Publisher<ByteBuf> requestBody;
+  final Headers requestHeaders;
+  final HttpResponse response;
+  final Headers responseHeaders;
+  Plugin shortCircuit;
+  private boolean cancelled;
+  private CompletionStage<Publisher<ByteBuf>> upstream;
+
+  Exchange(
+      final HttpRequest request,
+      final Publisher<ByteBuf> requestBody,
+      final HttpResponse response) {
+    this.request = request;
+    this.requestBody = requestBody;
+    this.response = response;
+    requestHeaders = new Headers(request.headers());
+    responseHeaders = new Headers(response.headers());
+  }
+
+  /** Cancels the stage of the handler at the end of the chain, also when it starts later. */
+  synchronized void cancel() {
+    cancelled = true;
+
+    if (upstream != null) {
+      upstream.toCompletableFuture().cancel(false);
+    }
+  }
+
+  synchronized CompletionStage<Publisher<ByteBuf>> upstream(
+      final CompletionStage<Publisher<ByteBuf>> stage) {
+    upstream = stage;
+
+    if (cancelled) {
+      stage.toCompletableFuture().cancel(false);
+    }
+
+    return stage;
+  }
+}
@@ -0,0 +1,73 @@
+package net.pincette.http.headers;
+
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.Threads.fixedPool;
+
+import com.typesafe.config.Config;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Decides where the continuations of the plugin chain run. In the <code>async</code> mode every
+ * continuation is handed to the executor. In the <code>inline</code> mode a continuation runs
+ * immediately on the current thread when the stage is already complete, which is the case for
+ * synchronous plugins. Only the other continuations go to the executor.
+ *
+ * @author Werner Donné
+ */
+class Execution {
+  private static final String EXECUTION = "execution";
+  private static final String INLINE = "inline";
+  private static final String MODE = "mode";
+  private static final String THREADS = "threads";
+
+  private final Executor executor;
+  private final boolean inline;
+
+  private Execution(final Executor executor, final boolean inline) {
+    this.executor = executor;
+    this.inline = inline;
+  }
+
+  static Execution execution(final Config config) {
+    final Optional<Config> execution = configValue(config::getConfig, EXECUTION);
+
+    return new Execution(
+        execution
+            .flatMap(c -> configValue(c::getInt, THREADS))
+            .map(threads -> fixedPool("http-headers", threads))
+            .orElseGet(ForkJoinPool::commonPool),
+        execution.flatMap(c -> configValue(c::getString, MODE)).map(INLINE::equals).orElse(false));
+  }
+
+  private static boolean isDone(final CompletionStage<?> stage) {
+    return stage instanceof Future<?> future && future.isDone();
+  }
+
+  /** Stops the own threads, if any, after the continuations that are still queued. */
+  void close() {
+    if (executor instanceof ExecutorService service && executor != ForkJoinPool.commonPool()) {
+      service.shutdown();
+    }
+  }
+
+  <T, U> CompletionStage<U> compose(
+      final CompletionStage<T> stage, final Function<? super T, ? extends CompletionStage<U>> fn) {
+    return inline && isDone(stage) ? stage.thenCompose(fn) : stage.thenComposeAsync(fn, executor);
+  }
+
+  /**
+   * Returns an execution that runs completed continuations on the current thread, whatever the
+   * mode is.
+   *
+   * @return The execution.
+   */
+  Execution inline() {
+    return inline ? this : new Execution(executor, true);
+  }
+}
@@ -0,0 +1,213 @@
+package net.pincette.http.headers;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.WARNING;
+import static net.pincette.http.headers.Application.LOGGER;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.pincette.netty.http.RequestHandler;
+
+/**
+ * Everything that is built from one version of the configuration and the plugin folder. When a
+ * reload replaces a generation, it is retired. It is closed when its last request has completed or
+ * when the drain timeout expires. A request is complete when its response body has ended, failed or
+ * was cancelled, because the body may still come from the upstream connections of the generation.
+ * Closing it releases the resources it owns, after which its plugin module layers can be collected.
+ *
+ * @author Werner Donné
+ */
+class Generation implements AutoCloseable {
+  final Chains chains;
+  final Metrics metrics;
+  final Upstream upstream;
+  private final CompletableFuture<Void> drained = new CompletableFuture<>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final List<AutoCloseable> resources = new ArrayList<>();
+  private RequestHandler handler;
+  private volatile boolean retired;
+
+  Generation(final Metrics metrics, final Chains chains, final Upstream upstream) {
+    this.metrics = metrics;
+    this.chains = owns(chains);
+    this.upstream = owns(upstream);
+  }
+
+  static void close(final AutoCloseable resource) {
+    try {
+      resource.close();
+    } catch (Exception e) {
+      LOGGER.log(WARNING, e, () -> "Can't close " + resource);
+    }
+  }
+
+  CompletionStage<Publisher<ByteBuf>> apply(
+      final HttpRequest request,
+      final Publisher<ByteBuf> requestBody,
+      final HttpResponse response) {
+    final CompletionStage<Publisher<ByteBuf>> stage;
+
+    try {
+      stage = handler.apply(request, requestBody, response);
+    } catch (RuntimeException e) {
+      exit();
+      throw e;
+    }
+
+    return stage
+        .whenComplete(
+            (r, e) -> {
+              if (e != null || r == null) {
+                exit();
+              }
+            })
+        .thenApply(body -> body != null ? new Tracked(body) : null);
+  }
+
+  public void close() {
+    metrics.close();
+
+    for (int i = resources.size() - 1; i >= 0; --i) {
+      close(resources.get(i));
+    }
+
+    resources.clear();
+  }
+
+  /**
+   * Registers a request. It fails when the generation was retired in the meantime.
+   *
+   * @return Whether the request may use this generation.
+   */
+  boolean enter() {
+    inFlight.incrementAndGet();
+
+    if (retired) {
+      exit();
+
+      return false;
+    }
+
+    return true;
+  }
+
+  private void exit() {
+    if (inFlight.decrementAndGet() == 0 && retired) {
+      drained.complete(null);
+    }
+  }
+
+  void handler(final RequestHandler handler) {
+    this.handler = handler;
+  }
+
+  /**
+   * Registers a value that should be closed together with the generation, if it is closeable.
+   *
+   * @param value the value.
+   * @param <T> the type of the value.
+   * @return The value.
+   */
+  <T> T owns(final T value) {
+    if (value instanceof AutoCloseable closeable) {
+      resources.add(closeable);
+    }
+
+    return value;
+  }
+
+  /**
+   * Takes the generation out of service. Its series are removed from the metrics right away, so
+   * that they don't clash with those of the next generation.
+   *
+   * @param drainTimeout the maximum time to wait for the requests that are still running.
+   * @return A stage that completes when the generation is closed.
+   */
+  CompletionStage<Void> retire(final Duration drainTimeout) {
+    retired = true;
+    metrics.close();
+
+    if (inFlight.get() == 0) {
+      drained.complete(null);
+    }
+
+    return drained
+        .orTimeout(drainTimeout.toMillis(), MILLISECONDS)
+        .handle(
+            (r, e) -> {
+              if (e instanceof TimeoutException) {
+                LOGGER.log(
+                    WARNING,
+                    "{0} requests of the previous configuration didn't finish in time",
+                    inFlight.get());
+              }
+
+              close();
+
+              return null;
+            });
+  }
+
+  /** Exits the generation once, when the body ends, fails or is cancelled. */
+  private class Tracked implements Publisher<ByteBuf>, Subscriber<ByteBuf>, Subscription {
+    private final Publisher<ByteBuf> body;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private Subscriber<? super ByteBuf> subscriber;
+    private Subscription subscription;
+
+    private Tracked(final Publisher<ByteBuf> body) {
+      this.body = body;
+    }
+
+    public void cancel() {
+      subscription.cancel();
+      done();
+    }
+
+    private void done() {
+      if (done.compareAndSet(false, true)) {
+        exit();
+      }
+    }
+
+    public void onComplete() {
+      subscriber.onComplete();
+      done();
+    }
+
+    public void onError(final Throwable throwable) {
+      subscriber.onError(throwable);
+      done();
+    }
+
+    public void onNext(final ByteBuf buf) {
+      subscriber.onNext(buf);
+    }
+
+    public void onSubscribe(final Subscription subscription) {
+      this.subscription = subscription;
+      subscriber.onSubscribe(this);
+    }
+
+    public void request(final long n) {
+      subscription.request(n);
+    }
+
+    public void subscribe(final Subscriber<? super ByteBuf> subscriber) {
+      this.subscriber = subscriber;
+      body.subscribe(this);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package net.pincette.http.headers;
+
+import static java.lang.String.CASE_INSENSITIVE_ORDER;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The changes a plugin made to a set of headers. It can be applied to other headers.
+ *
+ * @author Werner Donné
+ */
+class HeaderDelta {
+  final Set<String> removed;
+  final Map<String, List<String>> set;
+
+  private HeaderDelta(final Map<String, List<String>> set, final Set<String> removed) {
+    this.set = set;
+    this.removed = removed;
+  }
+
+  static HeaderDelta delta(
+      final java.net.http.HttpHeaders before, final java.net.http.HttpHeaders after) {
+    final Map<String, List<String>> next = after.map();
+    final Map<String, List<String>> previous = before.map();
+    final Set<String> removed = new TreeSet<>(CASE_INSENSITIVE_ORDER);
+    final Map<String, List<String>> set = new TreeMap<>(CASE_INSENSITIVE_ORDER);
+
+    previous.keySet().stream().filter(n -> !next.containsKey(n)).forEach(removed::add);
+    next.forEach(
+        (k, v) -> {
+          if (!v.equals(previous.get(k))) {
+            set.put(k, v);
+          }
+        });
+
+    return new HeaderDelta(set, removed);
+  }
+
+  java.net.http.HttpHeaders apply(final java.net.http.HttpHeaders headers) {
+    if (isEmpty()) {
+      return headers;
+    }
+
+    final Map<String, List<String>> result = new TreeMap<>(CASE_INSENSITIVE_ORDER);
+
+    result.putAll(headers.map());
+    removed.forEach(result::remove);
+    result.putAll(set);
+
+    return java.net.http.HttpHeaders.of(result, (k, v) -> true);
+  }
+
+  boolean isEmpty() {
+    return set.isEmpty() && removed.isEmpty();
+  }
+}
@@ -0,0 +1,135 @@
+package net.pincette.http.headers;
+
+import static net.pincette.util.Collections.map;
+import static net.pincette.util.Pair.pair;
+
+import io.netty.handler.codec.http.HttpHeaders;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the headers of a request or a response while they travel through the plugin chain. The
+ * Netty headers are converted lazily and at most once. The plugins pass the immutable converted
+ * headers to each other and they are only written back to the Netty headers when the chain needs
+ * them there.
+ *
+ * @author Werner Donné
+ */
+class Headers {
+  private final HttpHeaders target;
+  private java.net.http.HttpHeaders converted;
+  private java.net.http.HttpHeaders current;
+
+  Headers(final HttpHeaders target) {
+    this.target = target;
+  }
+
+  static java.net.http.HttpHeaders convertHeaders(final HttpHeaders headers) {
+    return java.net.http.HttpHeaders.of(
+        map(headers.names().stream().map(n -> pair(n, headers.getAll(n)))), (k, v) -> true);
+  }
+
+  /**
+   * Makes <code>target</code> equal to <code>source</code> by applying only the additions, removals
+   * and replacements.
+   *
+   * @param target the Netty headers.
+   * @param source the new headers.
+   */
+  static void setHeaders(final HttpHeaders target, final java.net.http.HttpHeaders source) {
+    final Map<String, List<String>> next = source.map();
+
+    target.names().stream().filter(n -> !next.containsKey(n)).toList().forEach(target::remove);
+    next.forEach(
+        (k, v) -> {
+          if (!v.equals(target.getAll(k))) {
+            target.set(k, v);
+          }
+        });
+  }
+
+  /**
+   * Applies the differences between <code>previous</code> and <code>source</code> to <code>target
+   * </code>, without having to look at the Netty headers.
+   *
+   * @param target the Netty headers.
+   * @param source the new headers.
+   * @param previous the headers that correspond to the current contents of <code>target</code>.
+   */
+  static void setHeaders(
+      final HttpHeaders target,
+      final java.net.http.HttpHeaders source,
+      final java.net.http.HttpHeaders previous) {
+    final Map<String, List<String>> next = source.map();
+    final Map<String, List<String>> old = previous.map();
+
+    old.keySet().stream().filter(n -> !next.containsKey(n)).forEach(target::remove);
+    next.forEach(
+        (k, v) -> {
+          if (!v.equals(old.get(k))) {
+            target.set(k, v);
+          }
+        });
+  }
+
+  /**
+   * Checks if a header is present without converting the Netty headers.
+   *
+   * @param name the header name.
+   * @return Whether the header is present.
+   */
+  boolean contains(final String name) {
+    return current != null && current != converted
+        ? current.firstValue(name).isPresent()
+        : target.contains(name);
+  }
+
+  /**
+   * Writes the current headers back to the Netty headers if they were changed. Only the
+   * differences are applied.
+   *
+   * @return The object itself.
+   */
+  Headers flush() {
+    if (current != null && current != converted) {
+      if (converted != null) {
+        setHeaders(target, current, converted);
+      } else {
+        setHeaders(target, current);
+      }
+
+      converted = current;
+    }
+
+    return this;
+  }
+
+  java.net.http.HttpHeaders get() {
+    if (current == null) {
+      converted = convertHeaders(target);
+      current = converted;
+    }
+
+    return current;
+  }
+
+  /**
+   * Writes pending changes back and gives direct access to the Netty headers. The next call of
+   * <code>get</code> converts them again.
+   *
+   * @return The Netty headers.
+   */
+  HttpHeaders netty() {
+    flush();
+    converted = null;
+    current = null;
+
+    return target;
+  }
+
+  Headers set(final java.net.http.HttpHeaders headers) {
+    current = headers;
+
+    return this;
+  }
+}
@@ -0,0 +1,129 @@
+package net.pincette.http.headers;
+
+import static java.lang.Long.numberOfLeadingZeros;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with log-linear buckets. Every power of two between about one microsecond
+ * and about one minute is split in two buckets, which keeps the relative error below 50%.
+ * Recording is lock-free and doesn't allocate anything.
+ *
+ * @author Werner Donné
+ */
+class Histogram {
+  private static final int MAX_EXPONENT = 36;
+  private static final int MIN_EXPONENT = 10;
+  private static final int BUCKETS = (MAX_EXPONENT - MIN_EXPONENT) * 2 + 2;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder sum = new LongAdder();
+
+  private static int index(final long nanos) {
+    final long value = nanos - 1;
+
+    if (value < (1L << MIN_EXPONENT)) {
+      return 0;
+    }
+
+    final int exponent = 63 - numberOfLeadingZeros(value);
+
+    return exponent >= MAX_EXPONENT
+        ? BUCKETS - 1
+        : 1 + (exponent - MIN_EXPONENT) * 2 + (int) ((value >>> (exponent - 1)) & 1);
+  }
+
+  /**
+   * The inclusive upper bound of a bucket.
+   *
+   * @param index the bucket index.
+   * @return The bound in nanoseconds or <code>Long.MAX_VALUE</code> for the last bucket.
+   */
+  private static long upperBound(final int index) {
+    if (index == 0) {
+      return 1L << MIN_EXPONENT;
+    }
+
+    if (index == BUCKETS - 1) {
+      return Long.MAX_VALUE;
+    }
+
+    final int exponent = MIN_EXPONENT + (index - 1) / 2;
+
+    return (1L << exponent) + (((index - 1) % 2) + 1) * (1L << (exponent - 1));
+  }
+
+  long count() {
+    long count = 0;
+
+    for (int i = 0; i < BUCKETS; ++i) {
+      count += counts.get(i);
+    }
+
+    return count;
+  }
+
+  /**
+   * Returns the upper bound of the bucket in which the percentile falls.
+   *
+   * @param percentile the percentile between 0 and 1.
+   * @return The upper bound in nanoseconds or -1 when nothing was recorded.
+   */
+  long percentile(final double percentile) {
+    final long total = count();
+
+    if (total == 0) {
+      return -1;
+    }
+
+    final double rank = percentile * total;
+    long count = 0;
+
+    for (int i = 0; i < BUCKETS; ++i) {
+      count += counts.get(i);
+
+      if (count >= rank) {
+        return upperBound(i);
+      }
+    }
+
+    return upperBound(BUCKETS - 1);
+  }
+
+  void record(final long nanos) {
+    counts.incrementAndGet(index(nanos));
+    sum.add(nanos);
+  }
+
+  /**
+   * Writes the histogram in the Prometheus text format. The buckets are cumulative.
+   *
+   * @param builder the output.
+   * @param name the metric name.
+   * @param labels the labels without braces. It may be empty.
+   */
+  void render(final StringBuilder builder, final String name, final String labels) {
+    final String separator = labels.isEmpty() ? "" : ",";
+    long count = 0;
+
+    for (int i = 0; i < BUCKETS; ++i) {
+      count += counts.get(i);
+      builder
+          .append(name)
+          .append("_bucket{")
+          .append(labels)
+          .append(separator)
+          .append("le=\"")
+          .append(i == BUCKETS - 1 ? "+Inf" : Double.toString(upperBound(i) / 1e9))
+          .append("\"} ")
+          .append(count)
+          .append('\n');
+    }
+
+    final String suffix = labels.isEmpty() ? " " : ("{" + labels + "} ");
+
+    builder.append(name).append("_sum").append(suffix).append(sum.sum() / 1e9).append('\n');
+    builder.append(name).append("_count").append(suffix).append(count).append('\n');
+  }
+}
@@ -0,0 +1,33 @@
+package net.pincette.http.headers;
+
+import com.typesafe.config.Config;
+import net.pincette.http.headers.plugin.Plugin;
+
+/**
+ * A plugin together with where it was loaded from and its settings in the <code>pluginSettings
+ * </code> configuration entry.
+ *
+ * @author Werner Donné
+ */
+class LoadedPlugin {
+  final String folder;
+  final String name;
+  final Plugin plugin;
+  final Config settings;
+
+  LoadedPlugin(final String folder, final String name, final Plugin plugin, final Config settings) {
+    this.folder = folder;
+    this.name = name;
+    this.plugin = plugin;
+    this.settings = settings;
+  }
+
+  LoadedPlugin withPlugin(final Plugin plugin) {
+    return new LoadedPlugin(folder, name, plugin, settings);
+  }
+
+  @Override
+  public String toString() {
+    return folder + "/" + name;
+  }
+}
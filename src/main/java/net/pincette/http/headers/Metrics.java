@@ -0,0 +1,433 @@
+package net.pincette.http.headers;
+
+import static io.netty.buffer.Unpooled.wrappedBuffer;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static java.lang.System.nanoTime;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Comparator.comparing;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.stream.Stream.concat;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.netty.http.Util.simpleResponse;
+import static net.pincette.rs.Util.empty;
+
+import com.typesafe.config.Config;
+import io.netty.buffer.ByteBuf;
+import java.net.http.HttpHeaders;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+import net.pincette.http.headers.plugin.Plugin;
+import net.pincette.http.headers.plugin.RequestResult;
+import net.pincette.netty.http.HttpServer;
+import net.pincette.netty.http.RequestHandler;
+import net.pincette.rs.Source;
+
+/**
+ * Collects latency histograms per plugin phase and per route, in-flight gauges, short-circuit
+ * counts and plugin cache counts. They are served in the Prometheus text format at <code>/metrics
+ * </code> on the port in the <code>metrics.port</code> configuration entry. Without that entry
+ * nothing is measured.
+ *
+ * <p>All series are registered when the chain is built, so recording only touches counters. Each
+ * generation of the chain registers its series in a child, which is removed when the generation is
+ * retired.
+ *
+ * @author Werner Donné
+ */
+class Metrics {
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+  private static final String COUNTER = "counter";
+  private static final String GAUGE = "gauge";
+  private static final String HISTOGRAM = "histogram";
+  private static final String METRICS = "metrics";
+  private static final String PORT = "port";
+  private static final String PREFIX = "http_headers_";
+
+  private final List<Metrics> children = new CopyOnWriteArrayList<>();
+  private final Metrics parent;
+  private final HttpServer server;
+  private final List<Series> series = new CopyOnWriteArrayList<>();
+
+  private Metrics(final Integer port) {
+    parent = null;
+    server = port != null ? new HttpServer(port, handler()) : null;
+  }
+
+  private Metrics(final Metrics parent) {
+    this.parent = parent;
+    server = parent.server;
+  }
+
+  static Metrics metrics(final Config config) {
+    return new Metrics(
+        configValue(config::getConfig, METRICS)
+            .flatMap(c -> configValue(c::getInt, PORT))
+            .orElse(null));
+  }
+
+  private static String label(final String name, final String value) {
+    return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /**
+   * Records the duration of the stage when it completes. A stage that is already done, which is
+   * the case for synchronous and cached plugins, is recorded right away and returned as is.
+   *
+   * @param start the start time in nanoseconds.
+   * @param stage the measured stage.
+   * @param histogram the histogram in which the duration is recorded.
+   * @param <T> the result type.
+   * @return The stage.
+   */
+  private static <T> CompletionStage<T> measure(
+      final long start, final CompletionStage<T> stage, final Histogram histogram) {
+    if (stage instanceof CompletableFuture<T> future && future.isDone()) {
+      histogram.record(nanoTime() - start);
+
+      return stage;
+    }
+
+    return stage.whenComplete((r, e) -> histogram.record(nanoTime() - start));
+  }
+
+  /**
+   * Exposes the accepted and shed counts and the current limit of an admission controller.
+   *
+   * @param route the path prefix of the route or <code>null</code> for the server.
+   * @param admission the admission controller.
+   */
+  void admission(final String route, final Admission admission) {
+    if (isEnabled()) {
+      final String labels = route != null ? label("route", route) : "";
+
+      add("admission_accepted_total", COUNTER, labels, (LongSupplier) admission::accepted);
+      add("admission_limit", GAUGE, labels, (LongSupplier) admission::limit);
+      add("admission_shed_total", COUNTER, labels, (LongSupplier) admission::shed);
+    }
+  }
+
+  /** Exposes the written and dropped record counts of the access log. */
+  void accessLog(final AccessLog accessLog) {
+    if (isEnabled()) {
+      add("access_log_dropped_total", COUNTER, "", (LongSupplier) accessLog::dropped);
+      add("access_log_written_total", COUNTER, "", (LongSupplier) accessLog::written);
+    }
+  }
+
+  private void add(final String name, final String type, final String labels, final Object value) {
+    series.add(new Series(PREFIX + name, type, labels, value));
+  }
+
+  private Stream<Series> allSeries() {
+    return concat(series.stream(), children.stream().flatMap(Metrics::allSeries));
+  }
+
+  /**
+   * Creates metrics for one generation of the chain, which are rendered with these.
+   *
+   * @return The child metrics.
+   */
+  Metrics child() {
+    final Metrics child = new Metrics(this);
+
+    children.add(child);
+
+    return child;
+  }
+
+  void close() {
+    if (parent != null) {
+      parent.children.remove(this);
+    } else if (server != null) {
+      server.close();
+    }
+  }
+
+  void compression(final String route, final Compression compression) {
+    if (isEnabled()) {
+      final String labels = label("route", route);
+
+      add("compression_cache_hits_total", COUNTER, labels, (LongSupplier) compression::cacheHits);
+      add("compression_cache_memory_bytes", GAUGE, labels, (LongSupplier) compression::memory);
+      add("compression_input_bytes_total", COUNTER, labels, (LongSupplier) compression::input);
+      add("compression_output_bytes_total", COUNTER, labels, (LongSupplier) compression::output);
+      add("compression_responses_total", COUNTER, labels, (LongSupplier) compression::compressed);
+    }
+  }
+
+  private RequestHandler handler() {
+    return (request, requestBody, response) -> {
+      if (!request.uri().startsWith("/" + METRICS)) {
+        response.setStatus(NOT_FOUND);
+
+        return completedFuture(empty());
+      }
+
+      response.headers().set("Content-Type", CONTENT_TYPE);
+
+      return simpleResponse(response, OK, Source.of(wrappedBuffer(render().getBytes(UTF_8))));
+    };
+  }
+
+  /**
+   * Exposes the number of requests that shared an upstream call with another one.
+   *
+   * @param route the path prefix of the route.
+   * @param coalescer the coalescer of the route.
+   */
+  void coalescer(final String route, final Coalescer coalescer) {
+    if (isEnabled()) {
+      add("coalesced_total", COUNTER, label("route", route), (LongSupplier) coalescer::coalesced);
+    }
+  }
+
+  private Histogram histogram(final String name, final String labels) {
+    final Histogram histogram = new Histogram();
+
+    add(name, HISTOGRAM, labels, histogram);
+
+    return histogram;
+  }
+
+  private RequestHandler inFlight(
+      final RequestHandler handler,
+      final String name,
+      final String labels,
+      final Histogram histogram) {
+    final LongAdder inFlight = new LongAdder();
+
+    add(name + "_in_flight", GAUGE, labels, (LongSupplier) inFlight::sum);
+
+    return (request, requestBody, response) -> {
+      final long start = nanoTime();
+
+      inFlight.increment();
+
+      final CompletionStage<Publisher<ByteBuf>> stage =
+          handler.apply(request, requestBody, response);
+
+      stage.whenComplete(
+          (r, e) -> {
+            histogram.record(nanoTime() - start);
+            inFlight.decrement();
+          });
+
+      return stage;
+    };
+  }
+
+  boolean isEnabled() {
+    return server != null;
+  }
+
+  /**
+   * Measures the phases of a plugin and its short-circuit responses. When the plugin has a cache
+   * or a bulkhead, they are measured as well.
+   *
+   * @param plugin the plugin.
+   * @return The measured plugin or the original one if metrics are disabled.
+   */
+  LoadedPlugin measured(final LoadedPlugin plugin) {
+    if (!isEnabled()) {
+      return plugin;
+    }
+
+    final String labels = label("plugin", plugin.toString());
+    final LongAdder shortCircuits = new LongAdder();
+
+    for (Plugin p = plugin.plugin; p != null; p = p instanceof Decorator d ? d.delegate() : null) {
+      if (p instanceof PluginCache cache) {
+        add("plugin_cache_hits_total", COUNTER, labels, (LongSupplier) cache::hits);
+        add("plugin_cache_misses_total", COUNTER, labels, (LongSupplier) cache::misses);
+      } else if (p instanceof Bulkhead bulkhead) {
+        add("plugin_bulkhead_in_use", GAUGE, labels, (LongSupplier) bulkhead::inUse);
+        add("plugin_bulkhead_rejected_total", COUNTER, labels, (LongSupplier) bulkhead::rejected);
+      }
+    }
+
+    add("plugin_short_circuits_total", COUNTER, labels, (LongSupplier) shortCircuits::sum);
+
+    return plugin.withPlugin(
+        new MeasuredPlugin(
+            plugin.plugin,
+            histogram("plugin_seconds", labels + "," + label("phase", "request")),
+            histogram("plugin_seconds", labels + "," + label("phase", "response")),
+            histogram("plugin_seconds", labels + "," + label("phase", "responseWrapper")),
+            shortCircuits));
+  }
+
+  void retries(final String route, final Retries retries) {
+    if (isEnabled()) {
+      final String labels = label("route", route);
+
+      add("hedges_total", COUNTER, labels, (LongSupplier) retries::hedges);
+      add("retries_total", COUNTER, labels, (LongSupplier) retries::retries);
+      add("retry_budget_exhausted_total", COUNTER, labels, (LongSupplier) retries::exhausted);
+      add("retry_requests_total", COUNTER, labels, (LongSupplier) retries::requests);
+    }
+  }
+
+  private String render() {
+    final StringBuilder builder = new StringBuilder();
+    String previous = null;
+
+    for (final Series s : allSeries().sorted(comparing(s -> s.name)).toList()) {
+      if (!s.name.equals(previous)) {
+        builder.append("# TYPE ").append(s.name).append(' ').append(s.type).append('\n');
+        previous = s.name;
+      }
+
+      if (s.value instanceof Histogram histogram) {
+        histogram.render(builder, s.name, s.labels);
+      } else {
+        builder
+            .append(s.name)
+            .append(s.labels.isEmpty() ? "" : ("{" + s.labels + "}"))
+            .append(' ')
+            .append(((LongSupplier) s.value).getAsLong())
+            .append('\n');
+      }
+    }
+
+    return builder.toString();
+  }
+
+  /**
+   * Exposes the hit, miss and revalidation counts and the memory use of a response cache.
+   *
+   * @param route the path prefix of the route.
+   * @param cache the response cache of the route.
+   */
+  void responseCache(final String route, final ResponseCache cache) {
+    if (isEnabled()) {
+      final String labels = label("route", route);
+
+      add("response_cache_hits_total", COUNTER, labels, (LongSupplier) cache::hits);
+      add("response_cache_memory_bytes", GAUGE, labels, (LongSupplier) cache::memory);
+      add("response_cache_misses_total", COUNTER, labels, (LongSupplier) cache::misses);
+      add(
+          "response_cache_revalidations_total",
+          COUNTER,
+          labels,
+          (LongSupplier) cache::revalidations);
+    }
+  }
+
+  /**
+   * Measures all requests that go through the server.
+   *
+   * @param handler the handler of the server.
+   * @return The measured handler or the original one if metrics are disabled.
+   */
+  RequestHandler requests(final RequestHandler handler) {
+    return isEnabled()
+        ? inFlight(handler, "requests", "", histogram("requests_seconds", ""))
+        : handler;
+  }
+
+  /**
+   * Measures the requests of a route until the upstream response headers are available.
+   *
+   * @param pathPrefix the path prefix of the route.
+   * @param handler the forwarder of the route.
+   * @return The measured forwarder or the original one if metrics are disabled.
+   */
+  RequestHandler route(final String pathPrefix, final RequestHandler handler) {
+    if (!isEnabled()) {
+      return handler;
+    }
+
+    final String labels = label("route", pathPrefix);
+
+    return inFlight(handler, "route", labels, histogram("route_seconds", labels));
+  }
+
+  CompletionStage<Boolean> run() {
+    return server != null && parent == null ? server.run() : completedFuture(true);
+  }
+
+  private static class MeasuredPlugin implements Decorator {
+    private final Plugin plugin;
+    private final Histogram request;
+    private final Histogram response;
+    private final Histogram responseWrapper;
+    private final LongAdder shortCircuits;
+
+    private MeasuredPlugin(
+        final Plugin plugin,
+        final Histogram request,
+        final Histogram response,
+        final Histogram responseWrapper,
+        final LongAdder shortCircuits) {
+      this.plugin = plugin;
+      this.request = request;
+      this.response = response;
+      this.responseWrapper = responseWrapper;
+      this.shortCircuits = shortCircuits;
+    }
+
+    public Plugin delegate() {
+      return plugin;
+    }
+
+    private RequestResult measured(
+        final long start, final RequestResult result, final Throwable exception) {
+      request.record(nanoTime() - start);
+
+      if (exception != null) {
+        throw exception instanceof CompletionException c ? c : new CompletionException(exception);
+      }
+
+      if (result.response != null) {
+        shortCircuits.increment();
+      }
+
+      return result.responseWrapper != null
+          ? result.withResponseWrapper(measured(result.responseWrapper))
+          : result;
+    }
+
+    private Function<HttpHeaders, CompletionStage<HttpHeaders>> measured(
+        final Function<HttpHeaders, CompletionStage<HttpHeaders>> wrapper) {
+      return headers -> measure(nanoTime(), wrapper.apply(headers), responseWrapper);
+    }
+
+    public CompletionStage<RequestResult> request(final HttpHeaders headers) {
+      final long start = nanoTime();
+
+      return plugin.request(headers).handle((r, e) -> measured(start, r, e));
+    }
+
+    public CompletionStage<HttpHeaders> response(final HttpHeaders headers) {
+      return measure(nanoTime(), plugin.response(headers), response);
+    }
+
+    @Override
+    public String toString() {
+      return plugin.toString();
+    }
+  }
+
+  private static class Series {
+    private final String labels;
+    private final String name;
+    private final String type;
+    private final Object value;
+
+    private Series(final String name, final String type, final String labels, final Object value) {
+      this.name = name;
+      this.type = type;
+      this.labels = labels;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,539 @@
+package net.pincette.http.headers;
+
+import static io.netty.channel.ChannelOption.CONNECT_TIMEOUT_MILLIS;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONNECTION;
+import static io.netty.handler.codec.http.HttpHeaderNames.HOST;
+import static io.netty.handler.codec.http.HttpHeaderNames.KEEP_ALIVE;
+import static io.netty.handler.codec.http.HttpHeaderNames.PROXY_CONNECTION;
+import static io.netty.handler.codec.http.HttpHeaderNames.TE;
+import static io.netty.handler.codec.http.HttpHeaderNames.TRAILER;
+import static io.netty.handler.codec.http.HttpHeaderNames.UPGRADE;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static io.netty.handler.codec.http.LastHttpContent.EMPTY_LAST_CONTENT;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.util.Util.tryToGetRethrow;
+
+import com.typesafe.config.Config;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.ChannelPool;
+import io.netty.channel.pool.ChannelPoolHandler;
+import io.netty.channel.pool.FixedChannelPool;
+import io.netty.channel.pool.SimpleChannelPool;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FutureListener;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import net.pincette.netty.http.RequestHandler;
+
+/**
+ * Forwards requests to one endpoint with a Netty client. The body buffers are passed through in
+ * both directions without copying. Every event loop has its own connection pool, so a request
+ * that arrives on an event loop of the group stays on it. The request body is only requested
+ * while the connection is writable and the response body is only read when the subscriber asks
+ * for more. The path of the endpoint is put in front of the path of the request. The host name in
+ * the certificate of an HTTPS endpoint is verified.
+ *
+ * @author Werner Donné
+ */
+class NettyForwarder implements RequestHandler, AutoCloseable {
+  private static final String CONNECT_TIMEOUT = "connectTimeout";
+  private static final String HTTPS = "https";
+  private static final String HTTPS_ALGORITHM = "HTTPS";
+  private static final AsciiString[] HOP_BY_HOP = {
+    CONNECTION, KEEP_ALIVE, PROXY_CONNECTION, TE, TRAILER, UPGRADE
+  };
+  private static final String KEEP_ALIVE_FIELD = "keepAlive";
+  private static final String MAX_CONNECTIONS = "maxConnections";
+
+  private final String authority;
+  private final EventLoopGroup group;
+  private final Map<EventExecutor, ChannelPool> pools = new IdentityHashMap<>();
+  private final String prefix;
+
+  NettyForwarder(
+      final URI endpoint,
+      final EventLoopGroup group,
+      final Class<? extends Channel> channel,
+      final Config config) {
+    final boolean secure = HTTPS.equalsIgnoreCase(endpoint.getScheme());
+    final int port = endpoint.getPort() != -1 ? endpoint.getPort() : defaultPort(secure);
+    final SslContext ssl =
+        secure ? tryToGetRethrow(() -> SslContextBuilder.forClient().build()).orElse(null) : null;
+    final ChannelPoolHandler handler =
+        poolHandler(
+            ssl,
+            endpoint.getHost(),
+            port,
+            configValue(config::getDuration, KEEP_ALIVE_FIELD).orElse(Duration.ofSeconds(60)));
+    final Bootstrap bootstrap =
+        new Bootstrap()
+            .channel(channel)
+            .remoteAddress(InetSocketAddress.createUnresolved(endpoint.getHost(), port));
+    final int loops = size(group);
+
+    configValue(config::getDuration, CONNECT_TIMEOUT)
+        .ifPresent(d -> bootstrap.option(CONNECT_TIMEOUT_MILLIS, (int) d.toMillis()));
+    this.group = group;
+    authority = endpoint.getRawAuthority();
+    prefix = prefix(endpoint);
+
+    for (final EventExecutor loop : group) {
+      final Bootstrap b = bootstrap.clone((EventLoop) loop);
+
+      pools.put(
+          loop,
+          configValue(config::getInt, MAX_CONNECTIONS)
+              .<ChannelPool>map(max -> new FixedChannelPool(b, handler, Math.max(1, max / loops)))
+              .orElseGet(() -> new SimpleChannelPool(b, handler)));
+    }
+  }
+
+  private static int defaultPort(final boolean secure) {
+    return secure ? 443 : 80;
+  }
+
+  private static ChannelPoolHandler poolHandler(
+      final SslContext ssl, final String host, final int port, final Duration keepAlive) {
+    return new AbstractChannelPoolHandler() {
+      public void channelCreated(final Channel channel) {
+        channel.config().setAutoRead(false);
+
+        if (ssl != null) {
+          channel.pipeline().addLast(verified(ssl.newHandler(channel.alloc(), host, port)));
+        }
+
+        channel
+            .pipeline()
+            .addLast(new IdleStateHandler(0, 0, keepAlive.toSeconds(), SECONDS))
+            .addLast(new HttpClientCodec())
+            .addLast(new Connection());
+      }
+    };
+  }
+
+  private static String prefix(final URI endpoint) {
+    return endpoint.getRawPath() != null ? endpoint.getRawPath().replaceAll("/+$", "") : "";
+  }
+
+  private static void removeHopByHop(final HttpHeaders headers) {
+    for (final AsciiString name : HOP_BY_HOP) {
+      headers.remove(name);
+    }
+  }
+
+  private static int size(final EventLoopGroup group) {
+    int result = 0;
+
+    for (final EventExecutor ignored : group) {
+      ++result;
+    }
+
+    return result;
+  }
+
+  /**
+   * Turns on the verification of the host name in the certificate of the endpoint, which the
+   * engine doesn't do by default.
+   *
+   * @param handler the TLS handler for the connection.
+   * @return The handler.
+   */
+  private static SslHandler verified(final SslHandler handler) {
+    final SSLEngine engine = handler.engine();
+    final SSLParameters parameters = engine.getSSLParameters();
+
+    parameters.setEndpointIdentificationAlgorithm(HTTPS_ALGORITHM);
+    engine.setSSLParameters(parameters);
+
+    return handler;
+  }
+
+  public CompletionStage<Publisher<ByteBuf>> apply(
+      final HttpRequest request,
+      final Publisher<ByteBuf> requestBody,
+      final HttpResponse response) {
+    final EventExecutor loop = loop();
+    final ChannelPool pool = pools.get(loop);
+    final Call call = new Call(upstreamRequest(request), requestBody, response, pool);
+
+    pool.acquire()
+        .addListener(
+            (FutureListener<Channel>)
+                f -> {
+                  if (f.isSuccess()) {
+                    call.start(f.getNow());
+                  } else {
+                    call.result.completeExceptionally(f.cause());
+                  }
+                });
+
+    return call.result;
+  }
+
+  /** Closes the idle connections. The others are closed when they are released. */
+  public void close() {
+    pools.values().forEach(ChannelPool::close);
+  }
+
+  private EventExecutor loop() {
+    for (final EventExecutor loop : group) {
+      if (loop.inEventLoop()) {
+        return loop;
+      }
+    }
+
+    return group.next();
+  }
+
+  private HttpRequest upstreamRequest(final HttpRequest request) {
+    final HttpRequest result =
+        new DefaultHttpRequest(HTTP_1_1, request.method(), prefix + request.uri());
+
+    result.headers().set(request.headers());
+    removeHopByHop(result.headers());
+    result.headers().set(HOST, authority);
+
+    return result;
+  }
+
+  /**
+   * The state of one exchange on a connection. Everything except the construction runs on the
+   * event loop of the connection.
+   */
+  private static class Call implements Publisher<ByteBuf>, Subscriber<ByteBuf>, Subscription {
+    private final ChannelPool pool;
+    private final Queue<ByteBuf> received = new ArrayDeque<>();
+    private final HttpRequest request;
+    private final Publisher<ByteBuf> requestBody;
+    private final HttpResponse response;
+    private final CompletableFuture<Publisher<ByteBuf>> result = new CompletableFuture<>();
+    private Channel channel;
+    private long demand;
+    private boolean finished;
+    private boolean informational;
+    private boolean keepAlive;
+    private boolean last;
+    private boolean requestDone;
+    private boolean responseDone;
+    private Subscriber<? super ByteBuf> subscriber;
+    private Subscription upload;
+    private boolean uploadWaiting;
+
+    private Call(
+        final HttpRequest request,
+        final Publisher<ByteBuf> requestBody,
+        final HttpResponse response,
+        final ChannelPool pool) {
+      this.request = request;
+      this.requestBody = requestBody;
+      this.response = response;
+      this.pool = pool;
+    }
+
+    private boolean abandoned() {
+      return result.isDone() && subscriber == null;
+    }
+
+    public void cancel() {
+      channel.eventLoop().execute(() -> fail(null));
+    }
+
+    private void content(final HttpContent content) {
+      final ByteBuf buf = content.content();
+
+      if (informational || !buf.isReadable()) {
+        buf.release();
+      } else {
+        received.add(buf);
+      }
+
+      if (content instanceof LastHttpContent) {
+        if (informational) {
+          informational = false;
+        } else {
+          last = true;
+        }
+      }
+
+      drain();
+    }
+
+    private void drain() {
+      while (subscriber != null && demand > 0 && !received.isEmpty()) {
+        --demand;
+        subscriber.onNext(received.poll());
+      }
+
+      if (subscriber != null && last && received.isEmpty() && !responseDone) {
+        responseDone = true;
+        subscriber.onComplete();
+        release();
+      }
+    }
+
+    private void fail(final Throwable e) {
+      if (finished) {
+        return;
+      }
+
+      final Throwable reason = e != null ? e : new CancellationException();
+
+      received.forEach(ByteBuf::release);
+      received.clear();
+
+      if (upload != null && !requestDone) {
+        upload.cancel();
+      }
+
+      if (!result.isDone()) {
+        result.completeExceptionally(reason);
+      } else if (subscriber != null && !responseDone && e != null) {
+        subscriber.onError(reason);
+      }
+
+      finish(false);
+    }
+
+    private void finish(final boolean reusable) {
+      finished = true;
+      channel.pipeline().get(Connection.class).call = null;
+
+      if (!reusable) {
+        channel.close();
+      }
+
+      pool.release(channel);
+    }
+
+    private boolean needsRead() {
+      return !last && (!result.isDone() || (demand > 0 && received.isEmpty()));
+    }
+
+    public void onComplete() {
+      channel
+          .eventLoop()
+          .execute(
+              () -> {
+                if (!finished) {
+                  requestDone = true;
+                  channel.writeAndFlush(EMPTY_LAST_CONTENT);
+                  release();
+                }
+              });
+    }
+
+    public void onError(final Throwable throwable) {
+      channel.eventLoop().execute(() -> fail(throwable));
+    }
+
+    public void onNext(final ByteBuf buf) {
+      channel
+          .eventLoop()
+          .execute(
+              () -> {
+                if (finished) {
+                  buf.release();
+                } else {
+                  channel.writeAndFlush(new DefaultHttpContent(buf));
+                  requestUpload();
+                }
+              });
+    }
+
+    public void onSubscribe(final Subscription subscription) {
+      upload = subscription;
+      upload.request(1);
+    }
+
+    private void release() {
+      if (requestDone && responseDone) {
+        finish(keepAlive);
+      } else if (responseDone) {
+        if (upload != null) {
+          upload.cancel();
+        }
+
+        finish(false);
+      }
+    }
+
+    public void request(final long n) {
+      channel
+          .eventLoop()
+          .execute(
+              () -> {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                drain();
+
+                if (!finished && needsRead()) {
+                  channel.read();
+                }
+              });
+    }
+
+    private void requestUpload() {
+      if (channel.isWritable()) {
+        upload.request(1);
+      } else {
+        uploadWaiting = true;
+      }
+    }
+
+    private void response(final HttpResponse upstream) {
+      if (upstream.status().code() / 100 == 1) {
+        informational = true;
+        return;
+      }
+
+      keepAlive = HttpUtil.isKeepAlive(upstream);
+      response.setStatus(upstream.status());
+      response.headers().set(upstream.headers());
+      removeHopByHop(response.headers());
+      result.complete(this);
+    }
+
+    private void start(final Channel channel) {
+      this.channel = channel;
+      channel.pipeline().get(Connection.class).call = this;
+      result.whenComplete(
+          (r, e) -> {
+            if (e instanceof CancellationException) {
+              cancel();
+            }
+          });
+      channel.write(request);
+      channel.read();
+      requestBody.subscribe(this);
+    }
+
+    public void subscribe(final Subscriber<? super ByteBuf> subscriber) {
+      channel
+          .eventLoop()
+          .execute(
+              () -> {
+                if (this.subscriber != null) {
+                  subscriber.onError(new IllegalStateException("Only one subscriber is allowed"));
+                } else {
+                  this.subscriber = subscriber;
+                  subscriber.onSubscribe(this);
+                  drain();
+                }
+              });
+    }
+
+    private void writabilityChanged() {
+      if (uploadWaiting && channel.isWritable()) {
+        uploadWaiting = false;
+        upload.request(1);
+      }
+    }
+  }
+
+  /** Dispatches the events of a pooled connection to the call that currently uses it. */
+  private static class Connection extends ChannelInboundHandlerAdapter {
+    private Call call;
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext context) {
+      if (call != null) {
+        call.fail(new IOException("The upstream connection was closed"));
+      }
+
+      context.fireChannelInactive();
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext context, final Object message) {
+      if (call == null) {
+        if (message instanceof HttpContent content) {
+          content.release();
+        }
+
+        return;
+      }
+
+      if (message instanceof HttpResponse upstream) {
+        call.response(upstream);
+      }
+
+      if (message instanceof HttpContent content) {
+        call.content(content);
+      }
+    }
+
+    @Override
+    public void channelReadComplete(final ChannelHandlerContext context) {
+      if (call != null && !call.finished && call.needsRead()) {
+        context.read();
+      }
+    }
+
+    @Override
+    public void channelWritabilityChanged(final ChannelHandlerContext context) {
+      if (call != null) {
+        call.writabilityChanged();
+      }
+
+      context.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext context, final Throwable cause) {
+      if (call != null) {
+        call.fail(cause);
+      } else {
+        context.close();
+      }
+    }
+
+    @Override
+    public void userEventTriggered(final ChannelHandlerContext context, final Object event) {
+      if (event instanceof IdleStateEvent && (call == null || call.abandoned())) {
+        if (call != null) {
+          call.fail(null);
+        } else {
+          context.close();
+        }
+      }
+
+      context.fireUserEventTriggered(event);
+    }
+  }
+}
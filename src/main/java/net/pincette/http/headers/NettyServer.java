@@ -0,0 +1,514 @@
+package net.pincette.http.headers;
+
+import static io.netty.channel.ChannelOption.SO_BACKLOG;
+import static io.netty.channel.ChannelOption.SO_RCVBUF;
+import static io.netty.channel.ChannelOption.SO_SNDBUF;
+import static io.netty.channel.ChannelOption.TCP_NODELAY;
+import static io.netty.channel.epoll.EpollChannelOption.SO_REUSEPORT;
+import static io.netty.handler.codec.http.HttpMethod.HEAD;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static io.netty.handler.codec.http.LastHttpContent.EMPTY_LAST_CONTENT;
+import static java.util.concurrent.CompletableFuture.failedFuture;
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.Application.LOGGER;
+
+import com.typesafe.config.Config;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerExpectContinueHandler;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.Flow.Subscriber;
+import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.pincette.netty.http.RequestHandler;
+
+/**
+ * An HTTP/1.1 server with its own bootstrap, so that the transport options of the <code>server
+ * </code> configuration block can be applied. With <code>reusePort</code> on the epoll transport
+ * the port is bound once per acceptor and the kernel spreads the connections over them. Request
+ * bodies are only read when the handler asks for them and response bodies are only requested while
+ * the connection is writable.
+ *
+ * @author Werner Donné
+ */
+class NettyServer implements Closeable {
+  private static final String BACKLOG = "backlog";
+  private static final String RECEIVE_BUFFER = "receiveBuffer";
+  private static final String REUSE_PORT = "reusePort";
+  private static final String SEND_BUFFER = "sendBuffer";
+  private static final String TCP_NO_DELAY = "tcpNoDelay";
+
+  private final int binds;
+  private final ServerBootstrap bootstrap;
+  private final List<Channel> channels = new ArrayList<>();
+  private final CompletableFuture<Boolean> closed = new CompletableFuture<>();
+  private final int port;
+
+  NettyServer(
+      final int port,
+      final RequestHandler handler,
+      final Transport transport,
+      final Config config) {
+    final boolean reusePort = configValue(config::getBoolean, REUSE_PORT).orElse(false);
+
+    this.port = port;
+    bootstrap =
+        new ServerBootstrap()
+            .group(transport.bosses, transport.workers)
+            .channel(transport.serverChannel())
+            .childOption(TCP_NODELAY, configValue(config::getBoolean, TCP_NO_DELAY).orElse(true))
+            .childHandler(
+                new ChannelInitializer<Channel>() {
+                  @Override
+                  protected void initChannel(final Channel channel) {
+                    channel.config().setAutoRead(false);
+                    channel
+                        .pipeline()
+                        .addLast(new HttpServerCodec())
+                        .addLast(new HttpServerExpectContinueHandler())
+                        .addLast(new Connection(handler));
+                  }
+                });
+    configValue(config::getInt, BACKLOG).ifPresent(b -> bootstrap.option(SO_BACKLOG, b));
+    configValue(config::getMemorySize, RECEIVE_BUFFER)
+        .ifPresent(s -> bootstrap.childOption(SO_RCVBUF, (int) s.toBytes()));
+    configValue(config::getMemorySize, SEND_BUFFER)
+        .ifPresent(s -> bootstrap.childOption(SO_SNDBUF, (int) s.toBytes()));
+
+    if (reusePort && transport.epoll) {
+      bootstrap.option(SO_REUSEPORT, true);
+      binds = transport.acceptors;
+    } else {
+      if (reusePort) {
+        LOGGER.warning("SO_REUSEPORT is only available with the epoll transport");
+      }
+
+      binds = 1;
+    }
+  }
+
+  private static boolean hasBody(final HttpRequest request, final HttpResponse response) {
+    final int code = response.status().code();
+
+    return !request.method().equals(HEAD) && code >= 200 && code != 204 && code != 304;
+  }
+
+  private static void prepare(
+      final HttpRequest request, final HttpResponse response, final boolean keepAlive) {
+    final boolean chunk =
+        hasBody(request, response)
+            && !HttpUtil.isContentLengthSet(response)
+            && !HttpUtil.isTransferEncodingChunked(response);
+
+    if (chunk && request.protocolVersion().equals(HTTP_1_1)) {
+      HttpUtil.setTransferEncodingChunked(response, true);
+      HttpUtil.setKeepAlive(response, keepAlive);
+    } else {
+      HttpUtil.setKeepAlive(response, keepAlive && !chunk);
+    }
+  }
+
+  /**
+   * Closes the bound channels. The event loops are left alone, because the upstream forwarders may
+   * share them. The owner of the transport closes it.
+   */
+  public void close() {
+    channels.forEach(Channel::close);
+    closed.complete(true);
+  }
+
+  /**
+   * Binds the port.
+   *
+   * @return A stage that completes when the server is closed.
+   */
+  CompletionStage<Boolean> run() {
+    final AtomicInteger bound = new AtomicInteger();
+
+    for (int i = 0; i < binds; ++i) {
+      final ChannelFuture future = bootstrap.bind(port);
+
+      channels.add(future.channel());
+      future.addListener(
+          (ChannelFutureListener)
+              f -> {
+                if (!f.isSuccess()) {
+                  LOGGER.log(SEVERE, f.cause(), () -> "Can't bind port " + port);
+                  close();
+                } else if (bound.incrementAndGet() == binds) {
+                  LOGGER.info(
+                      () -> "Listening on port " + port + " with " + binds + " acceptor(s)");
+                }
+              });
+    }
+
+    return closed;
+  }
+
+  /** Binds the port and waits until the server is closed. */
+  void start() {
+    run().toCompletableFuture().join();
+  }
+
+  /** The request body, which is only read from the connection when the subscriber has demand. */
+  private static class Body implements Publisher<ByteBuf>, Subscription {
+    private final ChannelHandlerContext context;
+    private final Queue<ByteBuf> received = new ArrayDeque<>();
+    private long demand;
+    private boolean finished;
+    private boolean last;
+    private Subscriber<? super ByteBuf> subscriber;
+
+    private Body(final ChannelHandlerContext context) {
+      this.context = context;
+    }
+
+    public void cancel() {
+      context.executor().execute(this::discard);
+    }
+
+    private void content(final HttpContent content) {
+      if (finished || !content.content().isReadable()) {
+        content.release();
+      } else {
+        received.add(content.content());
+      }
+
+      last = content instanceof LastHttpContent;
+      drain();
+    }
+
+    private void discard() {
+      finished = true;
+      received.forEach(ByteBuf::release);
+      received.clear();
+    }
+
+    private void drain() {
+      while (subscriber != null && demand > 0 && !received.isEmpty()) {
+        --demand;
+        subscriber.onNext(received.poll());
+      }
+
+      if (subscriber != null && last && received.isEmpty() && !finished) {
+        finished = true;
+        subscriber.onComplete();
+      }
+    }
+
+    private void fail(final Throwable e) {
+      if (subscriber != null && !finished) {
+        subscriber.onError(e);
+      }
+
+      discard();
+    }
+
+    private boolean needsRead() {
+      return !last && !finished && demand > 0 && received.isEmpty();
+    }
+
+    public void request(final long n) {
+      context
+          .executor()
+          .execute(
+              () -> {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                drain();
+
+                if (needsRead()) {
+                  context.read();
+                }
+              });
+    }
+
+    public void subscribe(final Subscriber<? super ByteBuf> subscriber) {
+      context
+          .executor()
+          .execute(
+              () -> {
+                if (this.subscriber != null) {
+                  subscriber.onError(new IllegalStateException("Only one subscriber is allowed"));
+                } else {
+                  this.subscriber = subscriber;
+                  subscriber.onSubscribe(this);
+                  drain();
+                }
+              });
+    }
+  }
+
+  /**
+   * Handles the requests of a connection one after the other. Pipelined requests wait until the
+   * response of the previous one is complete.
+   */
+  private static class Connection extends ChannelInboundHandlerAdapter {
+    private final RequestHandler handler;
+    private Body body;
+    private ChannelHandlerContext context;
+    private Queue<Object> pending = new ArrayDeque<>();
+    private Writer writer;
+
+    private Connection(final RequestHandler handler) {
+      this.handler = handler;
+    }
+
+    private static void release(final Object message) {
+      if (message instanceof HttpContent content) {
+        content.release();
+      }
+    }
+
+    @Override
+    public void channelActive(final ChannelHandlerContext context) {
+      this.context = context;
+      context.read();
+      context.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext context) {
+      if (body != null) {
+        body.fail(new IOException("The connection was closed"));
+      }
+
+      if (writer != null) {
+        writer.cancel();
+      }
+
+      pending.forEach(Connection::release);
+      pending.clear();
+      context.fireChannelInactive();
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext context, final Object message) {
+      if (body != null && (body.last || !pending.isEmpty())) {
+        pending.add(message);
+      } else if (message instanceof HttpRequest request) {
+        exchange(request);
+      } else if (message instanceof HttpContent content) {
+        if (body != null) {
+          body.content(content);
+        } else {
+          content.release();
+        }
+      }
+    }
+
+    @Override
+    public void channelReadComplete(final ChannelHandlerContext context) {
+      if (body == null || body.needsRead()) {
+        context.read();
+      }
+    }
+
+    @Override
+    public void channelWritabilityChanged(final ChannelHandlerContext context) {
+      if (writer != null) {
+        writer.writabilityChanged();
+      }
+
+      context.fireChannelWritabilityChanged();
+    }
+
+    private void done(final boolean keepAlive) {
+      final boolean reuse = keepAlive && body.last;
+      final Queue<Object> replay = pending;
+
+      if (body.last) {
+        body.discard();
+      } else {
+        body.fail(new IOException("The response was sent before the request body was read"));
+      }
+
+      body = null;
+      writer = null;
+
+      if (!reuse) {
+        replay.forEach(Connection::release);
+        context.close();
+
+        return;
+      }
+
+      pending = new ArrayDeque<>();
+      replay.forEach(m -> channelRead(context, m));
+
+      if (body == null || body.needsRead()) {
+        context.read();
+      }
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext context, final Throwable cause) {
+      LOGGER.log(WARNING, cause, cause::getMessage);
+      context.close();
+    }
+
+    private void exchange(final HttpRequest request) {
+      final boolean keepAlive = HttpUtil.isKeepAlive(request);
+      final HttpResponse response = new DefaultHttpResponse(request.protocolVersion(), OK);
+
+      body = new Body(context);
+
+      if (request.decoderResult().isFailure()) {
+        response.setStatus(BAD_REQUEST);
+        respond(request, response, null, false);
+
+        return;
+      }
+
+      handle(request, response)
+          .whenComplete(
+              (responseBody, e) ->
+                  context
+                      .executor()
+                      .execute(
+                          () -> {
+                            if (e != null) {
+                              LOGGER.log(SEVERE, e, e::getMessage);
+                              response.setStatus(INTERNAL_SERVER_ERROR);
+                              response.headers().clear();
+                              respond(request, response, null, false);
+                            } else {
+                              respond(request, response, responseBody, keepAlive);
+                            }
+                          }));
+    }
+
+    private CompletionStage<Publisher<ByteBuf>> handle(
+        final HttpRequest request, final HttpResponse response) {
+      try {
+        return handler.apply(request, body, response);
+      } catch (Exception e) {
+        return failedFuture(e);
+      }
+    }
+
+    private void respond(
+        final HttpRequest request,
+        final HttpResponse response,
+        final Publisher<ByteBuf> responseBody,
+        final boolean keepAlive) {
+      if (responseBody == null) {
+        HttpUtil.setContentLength(response, 0);
+      }
+
+      prepare(request, response, keepAlive);
+      context.write(response);
+
+      if (responseBody == null) {
+        context
+            .writeAndFlush(EMPTY_LAST_CONTENT)
+            .addListener(f -> done(HttpUtil.isKeepAlive(response)));
+      } else {
+        writer = new Writer(context, () -> done(HttpUtil.isKeepAlive(response)));
+        responseBody.subscribe(writer);
+      }
+    }
+  }
+
+  /** Writes the response body while the connection is writable. */
+  private static class Writer implements Subscriber<ByteBuf> {
+    private final ChannelHandlerContext context;
+    private final Runnable done;
+    private boolean finished;
+    private Subscription subscription;
+    private boolean waiting;
+
+    private Writer(final ChannelHandlerContext context, final Runnable done) {
+      this.context = context;
+      this.done = done;
+    }
+
+    private void cancel() {
+      finished = true;
+
+      if (subscription != null) {
+        subscription.cancel();
+      }
+    }
+
+    public void onComplete() {
+      context
+          .executor()
+          .execute(
+              () -> {
+                if (!finished) {
+                  finished = true;
+                  context.writeAndFlush(EMPTY_LAST_CONTENT).addListener(f -> done.run());
+                }
+              });
+    }
+
+    public void onError(final Throwable throwable) {
+      context
+          .executor()
+          .execute(
+              () -> {
+                LOGGER.log(WARNING, throwable, throwable::getMessage);
+                finished = true;
+                context.close();
+              });
+    }
+
+    public void onNext(final ByteBuf buf) {
+      context
+          .executor()
+          .execute(
+              () -> {
+                if (finished) {
+                  buf.release();
+                } else {
+                  context.writeAndFlush(new DefaultHttpContent(buf));
+
+                  if (context.channel().isWritable()) {
+                    subscription.request(1);
+                  } else {
+                    waiting = true;
+                  }
+                }
+              });
+    }
+
+    public void onSubscribe(final Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(1);
+    }
+
+    private void writabilityChanged() {
+      if (waiting && context.channel().isWritable()) {
+        waiting = false;
+        subscription.request(1);
+      }
+    }
+  }
+}
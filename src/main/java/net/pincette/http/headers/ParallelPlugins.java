@@ -0,0 +1,268 @@
+package net.pincette.http.headers;
+
+import static java.util.concurrent.CompletableFuture.allOf;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toSet;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.Application.LOGGER;
+import static net.pincette.http.headers.Capabilities.capabilities;
+import static net.pincette.http.headers.Capabilities.declared;
+import static net.pincette.http.headers.HeaderDelta.delta;
+import static net.pincette.http.headers.Timeouts.isFailClosed;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValue;
+import java.net.http.HttpHeaders;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import net.pincette.http.headers.plugin.Plugin;
+import net.pincette.http.headers.plugin.RequestResult;
+
+/**
+ * Runs a group of independent plugins concurrently. All members of the group receive the same
+ * input headers. Their changes are merged in chain order, so when two members change the same
+ * header the later one wins. This is the case for both phases and for the response wrappers.
+ *
+ * <p>When a member returns a response in the request phase, the first one in chain order is the
+ * result of the group and the changes of the other members are dropped. As with a single plugin,
+ * the response phase of the group is then skipped.
+ *
+ * <p>The capabilities of the members are respected. A member is left out when the request lacks
+ * the headers it requires, and its phases only run when it declares them. The response phases of
+ * the members run in the response wrapper of the group, so that only the members that took part
+ * in the request phase take part in the response phase. A member that fails is logged and its
+ * changes are skipped, while the other members still count. A member that fails closed fails the
+ * group. The group itself declares the capabilities its members have together, so the server skips
+ * its own response phase and skips the group for requests that lack a header all members require.
+ *
+ * @author Werner Donné
+ */
+class ParallelPlugins implements Plugin {
+  private static final String PARALLEL = "parallel";
+
+  private final List<Plugin> plugins;
+
+  private ParallelPlugins(final List<Plugin> plugins) {
+    this.plugins = plugins;
+  }
+
+  /**
+   * All stages have already been started, so they run concurrently.
+   *
+   * @param stages the started stages.
+   * @param <T> the result type.
+   * @return The results in the same order.
+   */
+  private static <T> CompletionStage<List<T>> all(final List<CompletionStage<T>> stages) {
+    return allOf(
+            stages.stream()
+                .map(CompletionStage::toCompletableFuture)
+                .toArray(CompletableFuture[]::new))
+        .thenApply(v -> stages.stream().map(s -> s.toCompletableFuture().join()).toList());
+  }
+
+  private static RequestResult failed(final Plugin plugin, final Throwable e) {
+    LOGGER.log(WARNING, e, () -> "The request phase of plugin " + plugin + " has failed");
+
+    return new RequestResult();
+  }
+
+  private static HttpHeaders failed(
+      final Plugin plugin, final Throwable e, final HttpHeaders headers) {
+    if (isFailClosed(e)) {
+      throw e instanceof CompletionException c ? c : new CompletionException(e);
+    }
+
+    LOGGER.log(WARNING, e, () -> "The response phase of plugin " + plugin + " has failed");
+
+    return headers;
+  }
+
+  private static Optional<Integer> group(
+      final LoadedPlugin plugin, final List<Set<String>> groups) {
+    return IntStream.range(0, groups.size())
+        .filter(i -> groups.get(i).contains(plugin.name) || groups.get(i).contains(plugin.folder))
+        .boxed()
+        .findFirst();
+  }
+
+  private static LoadedPlugin group(final List<LoadedPlugin> members) {
+    return members.size() == 1
+        ? members.get(0)
+        : declared(
+            new LoadedPlugin(
+                PARALLEL,
+                members.stream().map(LoadedPlugin::toString).collect(joining(",", "[", "]")),
+                new ParallelPlugins(members.stream().map(p -> p.plugin).toList()),
+                ConfigFactory.empty()),
+            Capabilities.group(members.stream().map(p -> capabilities(p.plugin)).toList()));
+  }
+
+  private static List<Set<String>> groups(final Config config) {
+    return configValue(config::getList, PARALLEL)
+        .map(
+            list ->
+                list.stream()
+                    .map(ConfigValue::unwrapped)
+                    .filter(List.class::isInstance)
+                    .map(v -> ((List<?>) v).stream().map(String::valueOf).collect(toSet()))
+                    .toList())
+        .orElseGet(List::of);
+  }
+
+  private static HttpHeaders merge(final HttpHeaders input, final List<HttpHeaders> outputs) {
+    final Set<String> changed = new HashSet<>();
+    HttpHeaders result = input;
+
+    for (final HttpHeaders output : outputs) {
+      if (output != null && output != input) {
+        final HeaderDelta delta = delta(input, output);
+
+        delta.set.keySet().stream()
+            .filter(n -> !changed.add(n.toLowerCase()))
+            .forEach(n -> LOGGER.log(FINE, "Conflicting change of header {0}", n));
+        delta.removed.stream()
+            .filter(n -> !changed.add(n.toLowerCase()))
+            .forEach(n -> LOGGER.log(FINE, "Conflicting removal of header {0}", n));
+        result = delta.apply(result);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Replaces the plugins that are in the same group of the <code>parallel</code> configuration
+   * entry with one plugin that runs them concurrently. It takes the place of the first member in
+   * the chain. A group contains plugin class names or folder names.
+   *
+   * @param plugins the plugins in chain order.
+   * @param config the configuration.
+   * @return The new chain.
+   */
+  static List<LoadedPlugin> parallel(final List<LoadedPlugin> plugins, final Config config) {
+    final List<Set<String>> groups = groups(config);
+
+    if (groups.isEmpty()) {
+      return plugins;
+    }
+
+    final Map<Integer, List<LoadedPlugin>> members = new HashMap<>();
+    final List<Object> order = new ArrayList<>();
+
+    plugins.forEach(
+        p ->
+            group(p, groups)
+                .ifPresentOrElse(
+                    g -> {
+                      if (!members.containsKey(g)) {
+                        order.add(g);
+                      }
+
+                      members.computeIfAbsent(g, k -> new ArrayList<>()).add(p);
+                    },
+                    () -> order.add(p)));
+
+    return order.stream()
+        .map(o -> o instanceof Integer g ? group(members.get(g)) : (LoadedPlugin) o)
+        .toList();
+  }
+
+  private static CompletionStage<RequestResult> request(
+      final Plugin plugin, final HttpHeaders headers) {
+    return capabilities(plugin).request
+        ? plugin.request(headers).exceptionally(e -> failed(plugin, e))
+        : completedFuture(new RequestResult());
+  }
+
+  /**
+   * Runs the response phase of a member, followed by the response wrapper it returned.
+   *
+   * @param plugin the member.
+   * @param wrapper the response wrapper of the member or <code>null</code>.
+   * @return The function or <code>null</code> when the member has nothing to do.
+   */
+  private static Function<HttpHeaders, CompletionStage<HttpHeaders>> response(
+      final Plugin plugin, final Function<HttpHeaders, CompletionStage<HttpHeaders>> wrapper) {
+    final boolean response = capabilities(plugin).response;
+
+    if (!response && wrapper == null) {
+      return null;
+    }
+
+    return headers -> {
+      final CompletionStage<HttpHeaders> stage =
+          response ? plugin.response(headers) : completedFuture(headers);
+
+      return (wrapper != null ? stage.thenCompose(wrapper) : stage)
+          .exceptionally(e -> failed(plugin, e, headers));
+    };
+  }
+
+  private static Function<HttpHeaders, CompletionStage<HttpHeaders>> responseWrapper(
+      final List<Function<HttpHeaders, CompletionStage<HttpHeaders>>> wrappers) {
+    return wrappers.isEmpty()
+        ? null
+        : headers ->
+            all(wrappers.stream().map(w -> w.apply(headers)).toList())
+                .thenApply(outputs -> merge(headers, outputs));
+  }
+
+  private static RequestResult result(
+      final HttpHeaders headers, final List<Plugin> members, final List<RequestResult> results) {
+    final Optional<RequestResult> response =
+        results.stream().filter(r -> r.response != null).findFirst();
+
+    if (response.isPresent()) {
+      return new RequestResult().withResponse(response.get().response);
+    }
+
+    final RequestResult result =
+        new RequestResult()
+            .withRequest(merge(headers, results.stream().map(r -> r.request).toList()));
+    final Function<HttpHeaders, CompletionStage<HttpHeaders>> wrapper =
+        responseWrapper(
+            IntStream.range(0, members.size())
+                .mapToObj(i -> response(members.get(i), results.get(i).responseWrapper))
+                .filter(Objects::nonNull)
+                .toList());
+
+    return wrapper != null ? result.withResponseWrapper(wrapper) : result;
+  }
+
+  public CompletionStage<RequestResult> request(final HttpHeaders headers) {
+    final List<Plugin> members =
+        plugins.stream().filter(p -> capabilities(p).applies(headers)).toList();
+
+    return all(members.stream().map(p -> request(p, headers)).toList())
+        .thenApply(results -> result(headers, members, results));
+  }
+
+  /**
+   * The response phases of the members run in the response wrapper that is returned by the request
+   * phase.
+   */
+  public CompletionStage<HttpHeaders> response(final HttpHeaders headers) {
+    return completedFuture(headers);
+  }
+
+  @Override
+  public String toString() {
+    return plugins.toString();
+  }
+}
@@ -0,0 +1,172 @@
+package net.pincette.http.headers;
+
+import static java.lang.System.nanoTime;
+import static java.util.Collections.synchronizedMap;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.HeaderDelta.delta;
+
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.LongAdder;
+import net.pincette.http.headers.plugin.Plugin;
+import net.pincette.http.headers.plugin.RequestResult;
+import net.pincette.http.headers.plugin.Response;
+
+/**
+ * Memoizes the request results of a plugin that is a pure function of a few headers. The cache key
+ * consists of the values of those headers. The cache is bounded and the least recently used
+ * entries are evicted first. Entries also expire after a time-to-live.
+ *
+ * <p>When a plugin changes the request headers, only the changes are cached. A cache hit applies
+ * them to the headers of the current request. A short-circuit response is cached as is. Results
+ * with a response wrapper are never cached, because the wrapper may depend on the request that
+ * produced it.
+ *
+ * @author Werner Donné
+ */
+class PluginCache implements Decorator {
+  private static final String CACHE = "cache";
+  private static final String HEADERS = "headers";
+  private static final String MAX_SIZE = "maxSize";
+  private static final String TTL = "ttl";
+
+  private final Map<List<List<String>>, Entry> entries;
+  private final LongAdder hits = new LongAdder();
+  private final List<String> keyHeaders;
+  private final LongAdder misses = new LongAdder();
+  private final Plugin plugin;
+  private final long ttl;
+
+  private PluginCache(
+      final Plugin plugin, final List<String> keyHeaders, final Duration ttl, final int maxSize) {
+    this.plugin = plugin;
+    this.keyHeaders = keyHeaders;
+    this.ttl = ttl.toNanos();
+    entries =
+        synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+              @Override
+              protected boolean removeEldestEntry(
+                  final Map.Entry<List<List<String>>, Entry> eldest) {
+                return size() > maxSize;
+              }
+            });
+  }
+
+  /**
+   * Wraps the plugin in a cache when its settings have a <code>cache</code> entry.
+   *
+   * @param plugin the plugin.
+   * @return The wrapped plugin or the original one.
+   */
+  static LoadedPlugin cached(final LoadedPlugin plugin) {
+    return configValue(plugin.settings::getConfig, CACHE)
+        .flatMap(
+            c ->
+                configValue(c::getStringList, HEADERS)
+                    .map(
+                        headers ->
+                            new PluginCache(
+                                plugin.plugin,
+                                headers,
+                                configValue(c::getDuration, TTL).orElse(Duration.ofMinutes(1)),
+                                configValue(c::getInt, MAX_SIZE).orElse(10000))))
+        .map(plugin::withPlugin)
+        .orElse(plugin);
+  }
+
+  public Plugin delegate() {
+    return plugin;
+  }
+
+  private Entry get(final List<List<String>> key) {
+    final Entry entry = entries.get(key);
+
+    if (entry != null && nanoTime() - entry.expires >= 0) {
+      entries.remove(key);
+
+      return null;
+    }
+
+    return entry;
+  }
+
+  long hits() {
+    return hits.sum();
+  }
+
+  private List<List<String>> key(final HttpHeaders headers) {
+    return keyHeaders.stream().map(headers::allValues).toList();
+  }
+
+  long misses() {
+    return misses.sum();
+  }
+
+  private RequestResult put(
+      final List<List<String>> key, final HttpHeaders headers, final RequestResult result) {
+    if (result.responseWrapper == null) {
+      entries.put(
+          key,
+          new Entry(
+              result.response,
+              result.response == null && result.request != null
+                  ? delta(headers, result.request)
+                  : null,
+              nanoTime() + ttl));
+    }
+
+    return result;
+  }
+
+  public CompletionStage<RequestResult> request(final HttpHeaders headers) {
+    final List<List<String>> key = key(headers);
+    final Entry entry = get(key);
+
+    if (entry != null) {
+      hits.increment();
+
+      return completedFuture(entry.result(headers));
+    }
+
+    misses.increment();
+
+    return plugin.request(headers).thenApply(result -> put(key, headers, result));
+  }
+
+  public CompletionStage<HttpHeaders> response(final HttpHeaders headers) {
+    return plugin.response(headers);
+  }
+
+  @Override
+  public String toString() {
+    return plugin.toString();
+  }
+
+  private static class Entry {
+    private final HeaderDelta delta;
+    private final long expires;
+    private final Response response;
+
+    private Entry(final Response response, final HeaderDelta delta, final long expires) {
+      this.response = response;
+      this.delta = delta;
+      this.expires = expires;
+    }
+
+    private RequestResult result(final HttpHeaders headers) {
+      if (response != null) {
+        return new RequestResult().withResponse(response);
+      }
+
+      return delta != null
+          ? new RequestResult().withRequest(delta.apply(headers))
+          : new RequestResult();
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package net.pincette.http.headers;
+
+import static com.typesafe.config.ConfigUtil.joinPath;
+import static java.lang.ClassLoader.getSystemClassLoader;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.stream.Collectors.toSet;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.Application.LOGGER;
+import static net.pincette.util.Util.tryToGetRethrow;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import java.lang.module.ModuleFinder;
+import java.lang.module.ModuleReference;
+import java.lang.module.ResolvedModule;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.ServiceLoader;
+import java.util.ServiceLoader.Provider;
+import java.util.Set;
+import java.util.stream.Stream;
+import net.pincette.http.headers.plugin.Plugin;
+
+/**
+ * Loads each subfolder of the plugin folder as a module layer and finds the plugins in it. Every
+ * plugin gets its settings from the <code>pluginSettings</code> entry, where they can be set per
+ * plugin class name and per folder name. The former have precedence.
+ *
+ * <p>The folders are loaded in parallel, because resolving a layer and instantiating its plugins
+ * dominates the startup time when there are many plugins. The plugins keep the order of their
+ * folders.
+ *
+ * @author Werner Donné
+ */
+class PluginLoader {
+  private static final String PLUGIN_SETTINGS = "pluginSettings";
+
+  private PluginLoader() {}
+
+  private static Set<String> alreadyLoaded() {
+    return ModuleLayer.boot().configuration().modules().stream()
+        .map(ResolvedModule::name)
+        .collect(toSet());
+  }
+
+  private static ModuleLayer createLayer(final Path folder, final Set<String> alreadyLoaded) {
+    final ModuleLayer boot = ModuleLayer.boot();
+    final ModuleFinder finder = finder(ModuleFinder.of(folder), alreadyLoaded);
+
+    return boot.defineModulesWithOneLoader(
+        boot.configuration().resolve(finder, ModuleFinder.of(), moduleNames(finder)),
+        getSystemClassLoader());
+  }
+
+  private static ModuleFinder finder(final ModuleFinder delegate, final Set<String> exclude) {
+    return new ModuleFinder() {
+      public Optional<ModuleReference> find(final String name) {
+        return exclude.contains(name) ? Optional.empty() : delegate.find(name);
+      }
+
+      public Set<ModuleReference> findAll() {
+        return delegate.findAll().stream()
+            .filter(r -> !exclude.contains(r.descriptor().name()))
+            .collect(toSet());
+      }
+    };
+  }
+
+  private static List<Path> folders(final Path directory) {
+    return Optional.of(directory)
+        .filter(Files::isDirectory)
+        .flatMap(d -> tryToGetRethrow(() -> Files.list(d)))
+        .map(
+            paths -> {
+              try (paths) {
+                return paths.filter(Files::isDirectory).toList();
+              }
+            })
+        .orElseGet(List::of);
+  }
+
+  static Stream<LoadedPlugin> loadPlugins(final Path directory, final Config config) {
+    final Set<String> alreadyLoaded = alreadyLoaded();
+    final long start = nanoTime();
+    final List<LoadedPlugin> plugins =
+        folders(directory).parallelStream()
+            .flatMap(folder -> loadPlugins(folder, config, alreadyLoaded).stream())
+            .toList();
+
+    LOGGER.info(() -> "Loaded the plugins of " + directory + " in " + millis(start) + "ms");
+
+    return plugins.stream();
+  }
+
+  private static List<LoadedPlugin> loadPlugins(
+      final Path folder, final Config config, final Set<String> alreadyLoaded) {
+    final String folderName = folder.getFileName().toString();
+    final long start = nanoTime();
+    final List<LoadedPlugin> plugins =
+        ServiceLoader.load(createLayer(folder, alreadyLoaded), Plugin.class).stream()
+            .map(
+                provider ->
+                    new LoadedPlugin(
+                        folderName,
+                        provider.type().getName(),
+                        provider.get(),
+                        settings(config, folderName, provider)))
+            .toList();
+
+    LOGGER.info(() -> "Loaded the plugin folder " + folderName + " in " + millis(start) + "ms");
+
+    return plugins;
+  }
+
+  private static long millis(final long start) {
+    return NANOSECONDS.toMillis(nanoTime() - start);
+  }
+
+  private static Set<String> moduleNames(final ModuleFinder finder) {
+    return finder.findAll().stream().map(r -> r.descriptor().name()).collect(toSet());
+  }
+
+  private static Config settings(
+      final Config config, final String folder, final Provider<Plugin> provider) {
+    return settings(config, provider.type().getName()).withFallback(settings(config, folder));
+  }
+
+  private static Config settings(final Config config, final String name) {
+    return configValue(config::getConfig, joinPath(PLUGIN_SETTINGS, name))
+        .orElseGet(ConfigFactory::empty);
+  }
+}
@@ -0,0 +1,110 @@
+package net.pincette.http.headers;
+
+import static java.util.Arrays.binarySearch;
+import static java.util.Optional.ofNullable;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import net.pincette.util.Pair;
+
+/**
+ * A character trie that is compiled once from a set of prefixes. A lookup returns the value of the
+ * longest prefix that matches the key. It takes at most one step per character of the key, however
+ * many prefixes there are. When the same prefix is added more than once, the first value is kept.
+ *
+ * @param <T> the value type.
+ * @author Werner Donné
+ */
+class PrefixTrie<T> {
+  private final Node<T> root;
+
+  private PrefixTrie(final Node<T> root) {
+    this.root = root;
+  }
+
+  static <T> PrefixTrie<T> prefixTrie(final Stream<Pair<String, T>> entries) {
+    final Builder<T> root = new Builder<>();
+
+    entries.forEach(e -> root.add(e.first, e.second));
+
+    return new PrefixTrie<>(root.build());
+  }
+
+  Optional<T> longestPrefix(final CharSequence key) {
+    return longestPrefix(key, 0, key.length());
+  }
+
+  /**
+   * Looks for the longest prefix of a part of the key.
+   *
+   * @param key the key.
+   * @param start the index of the first character in the key.
+   * @param end the index after the last character in the key.
+   * @return The value of the longest prefix.
+   */
+  Optional<T> longestPrefix(final CharSequence key, final int start, final int end) {
+    Node<T> node = root;
+    T result = root.value;
+
+    for (int i = start; i < end && node != null; ++i) {
+      node = node.child(key.charAt(i));
+
+      if (node != null && node.value != null) {
+        result = node.value;
+      }
+    }
+
+    return ofNullable(result);
+  }
+
+  private static class Builder<T> {
+    private final Map<Character, Builder<T>> children = new TreeMap<>();
+    private T value;
+
+    private void add(final String prefix, final T value) {
+      Builder<T> builder = this;
+
+      for (int i = 0; i < prefix.length(); ++i) {
+        builder = builder.children.computeIfAbsent(prefix.charAt(i), c -> new Builder<>());
+      }
+
+      if (builder.value == null) {
+        builder.value = value;
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<T> build() {
+      final char[] keys = new char[children.size()];
+      final Node<T>[] nodes = new Node[children.size()];
+      int i = 0;
+
+      for (final Map.Entry<Character, Builder<T>> entry : children.entrySet()) {
+        keys[i] = entry.getKey();
+        nodes[i++] = entry.getValue().build();
+      }
+
+      return new Node<>(keys, nodes, value);
+    }
+  }
+
+  private static class Node<T> {
+    private final Node<T>[] children;
+    private final char[] keys;
+    private final T value;
+
+    private Node(final char[] keys, final Node<T>[] children, final T value) {
+      this.keys = keys;
+      this.children = children;
+      this.value = value;
+    }
+
+    private Node<T> child(final char c) {
+      final int index = binarySearch(keys, c);
+
+      return index >= 0 ? children[index] : null;
+    }
+  }
+}
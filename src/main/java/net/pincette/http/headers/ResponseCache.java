@@ -0,0 +1,564 @@
+package net.pincette.http.headers;
+
+import static io.netty.handler.codec.http.HttpMethod.GET;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import static java.lang.Long.parseLong;
+import static java.lang.Math.max;
+import static java.lang.System.currentTimeMillis;
+import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.BodyBuffer.cancellable;
+import static net.pincette.rs.Util.empty;
+import static net.pincette.util.Util.tryToGetSilent;
+
+import com.typesafe.config.Config;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.atomic.LongAdder;
+import net.pincette.netty.http.RequestHandler;
+import net.pincette.rs.Source;
+
+/**
+ * A shared HTTP cache for the <code>GET</code> requests of a route. It honours the <code>
+ * Cache-Control</code>, <code>Expires</code>, <code>ETag</code>, <code>Last-Modified</code> and
+ * <code>Vary</code> headers. Only responses with a <code>Content-Length</code> below the entry
+ * limit are stored, so other bodies keep streaming. Stored bodies are copied into pooled off-heap
+ * buffers.
+ *
+ * <p>The memory of the bodies is bounded. When it is exceeded, the least recently used entries are
+ * evicted until the new one fits. Stale entries with a validator are revalidated with a
+ * conditional request.
+ *
+ * <p>The values of the request headers that are named in the <code>Vary</code> header of the last
+ * stored response for a URI are part of the key, so a URI can have several variants. Responses
+ * with <code>Vary: *</code> or a <code>Set-Cookie</code> header are not stored.
+ *
+ * @author Werner Donné
+ */
+class ResponseCache implements RequestHandler, AutoCloseable {
+  private static final String AGE = "Age";
+  private static final String AUTHORIZATION = "Authorization";
+  private static final String CACHE_CONTROL = "Cache-Control";
+  private static final String CONTENT_LENGTH = "Content-Length";
+  private static final String DATE = "Date";
+  private static final String ETAG = "ETag";
+  private static final String EXPIRES = "Expires";
+  private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+  private static final String IF_NONE_MATCH = "If-None-Match";
+  private static final String LAST_MODIFIED = "Last-Modified";
+  private static final String MAX_AGE = "max-age";
+  private static final String MAX_ENTRY_SIZE = "maxEntrySize";
+  private static final String MAX_MEMORY = "maxMemory";
+  private static final String MUST_REVALIDATE = "must-revalidate";
+  private static final String NO_CACHE = "no-cache";
+  private static final String NO_STORE = "no-store";
+  private static final String PRIVATE = "private";
+  private static final String PUBLIC = "public";
+  private static final String RESPONSE_CACHE = "responseCache";
+  private static final String SET_COOKIE = "Set-Cookie";
+  private static final String S_MAXAGE = "s-maxage";
+  private static final Set<Integer> STATUSES = Set.of(200, 203, 204, 300, 301, 308, 404, 410);
+  private static final String VARY = "Vary";
+
+  private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final RequestHandler handler;
+  private final LongAdder hits = new LongAdder();
+  private final long maxEntrySize;
+  private final long maxMemory;
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder revalidations = new LongAdder();
+  private final Map<String, List<String>> vary = new HashMap<>();
+  private long memory;
+
+  private ResponseCache(final RequestHandler handler, final long maxMemory, final long maxEntry) {
+    this.handler = handler;
+    this.maxMemory = maxMemory;
+    this.maxEntrySize = maxEntry;
+  }
+
+  /**
+   * Caches the responses of a route when its configuration has a <code>responseCache</code>
+   * block.
+   *
+   * @param handler the forwarder of the route.
+   * @param config the configuration of the route.
+   * @param route the path prefix of the route.
+   * @param metrics where the cache counts are exposed.
+   * @return The wrapped forwarder or the original one.
+   */
+  static RequestHandler cached(
+      final RequestHandler handler,
+      final Config config,
+      final String route,
+      final Metrics metrics) {
+    return configValue(config::getConfig, RESPONSE_CACHE)
+        .map(
+            c ->
+                new ResponseCache(
+                    handler,
+                    configValue(c::getBytes, MAX_MEMORY).orElse(64L * 1024 * 1024),
+                    configValue(c::getBytes, MAX_ENTRY_SIZE).orElse(1024L * 1024)))
+        .map(
+            c -> {
+              metrics.responseCache(route, c);
+
+              return (RequestHandler) c;
+            })
+        .orElse(handler);
+  }
+
+  private static long date(final HttpHeaders headers) {
+    return time(headers.get(DATE)).orElseGet(System::currentTimeMillis);
+  }
+
+  private static Map<String, String> directives(final HttpHeaders headers) {
+    final Map<String, String> result = new HashMap<>();
+
+    headers
+        .getAll(CACHE_CONTROL)
+        .forEach(
+            value -> {
+              for (final String directive : value.split(",")) {
+                final String trimmed = directive.trim();
+                final int equals = trimmed.indexOf('=');
+
+                if (!trimmed.isEmpty()) {
+                  result.put(
+                      (equals != -1 ? trimmed.substring(0, equals) : trimmed).toLowerCase(),
+                      equals != -1 ? trimmed.substring(equals + 1).replace("\"", "") : "");
+                }
+              }
+            });
+
+    return result;
+  }
+
+  /**
+   * Returns the freshness lifetime of a response.
+   *
+   * @param headers the response headers.
+   * @param directives the <code>Cache-Control</code> directives of the response.
+   * @return The lifetime in milliseconds or -1 when there is no explicit lifetime.
+   */
+  private static long freshness(final HttpHeaders headers, final Map<String, String> directives) {
+    return seconds(directives.get(S_MAXAGE))
+        .or(() -> seconds(directives.get(MAX_AGE)))
+        .map(s -> s * 1000)
+        .or(
+            () ->
+                time(headers.get(EXPIRES)).map(e -> max(0, e - date(headers))))
+        .orElse(-1L);
+  }
+
+  private static boolean isConditional(final HttpRequest request) {
+    return request.headers().contains(IF_NONE_MATCH)
+        || request.headers().contains(IF_MODIFIED_SINCE);
+  }
+
+  private static String key(final HttpRequest request, final List<String> names) {
+    if (names == null) {
+      return request.uri();
+    }
+
+    final StringBuilder builder = new StringBuilder(request.uri());
+
+    for (final String name : names) {
+      builder.append('\n').append(name).append(':').append(request.headers().getAll(name));
+    }
+
+    return builder.toString();
+  }
+
+  private static Optional<Long> seconds(final String value) {
+    return Optional.ofNullable(value).flatMap(v -> tryToGetSilent(() -> parseLong(v)));
+  }
+
+  private static Optional<Long> time(final String value) {
+    return Optional.ofNullable(value)
+        .flatMap(v -> tryToGetSilent(() -> ZonedDateTime.parse(v, RFC_1123_DATE_TIME)))
+        .map(t -> t.toInstant().toEpochMilli());
+  }
+
+  private static String uri(final String key) {
+    final int newline = key.indexOf('\n');
+
+    return newline != -1 ? key.substring(0, newline) : key;
+  }
+
+  public CompletionStage<Publisher<ByteBuf>> apply(
+      final HttpRequest request,
+      final Publisher<ByteBuf> requestBody,
+      final HttpResponse response) {
+    if (!GET.equals(request.method()) || directives(request.headers()).containsKey(NO_STORE)) {
+      return handler.apply(request, requestBody, response);
+    }
+
+    final Entry entry = get(request);
+
+    if (entry == null) {
+      misses.increment();
+
+      return forward(request, requestBody, response);
+    }
+
+    if (entry.isFresh() && !directives(request.headers()).containsKey(NO_CACHE)) {
+      hits.increment();
+
+      return completedFuture(
+          isConditional(request) && entry.matches(request)
+              ? entry.notModified(response)
+              : entry.apply(response));
+    }
+
+    if (isConditional(request) || (entry.etag == null && entry.lastModified == null)) {
+      entry.body.release();
+      misses.increment();
+
+      return forward(request, requestBody, response);
+    }
+
+    return revalidate(request, requestBody, response, entry);
+  }
+
+  /** Releases the bodies of all entries. */
+  public synchronized void close() {
+    entries.values().forEach(e -> e.body.release());
+    entries.clear();
+    vary.clear();
+    memory = 0;
+  }
+
+  private synchronized void evict(final HttpRequest request) {
+    final Entry entry = entries.remove(key(request));
+
+    if (entry != null) {
+      memory -= entry.size;
+      entry.body.release();
+    }
+  }
+
+  private CompletionStage<Publisher<ByteBuf>> forward(
+      final HttpRequest request,
+      final Publisher<ByteBuf> requestBody,
+      final HttpResponse response) {
+    final CompletionStage<Publisher<ByteBuf>> stage = handler.apply(request, requestBody, response);
+
+    return cancellable(stage, stage.thenCompose(body -> store(request, response, body)));
+  }
+
+  /**
+   * Looks up the entry for the request. The body of the returned entry is retained for the
+   * caller.
+   *
+   * @param request the request.
+   * @return The entry or <code>null</code>.
+   */
+  private synchronized Entry get(final HttpRequest request) {
+    final Entry entry = entries.get(key(request));
+
+    if (entry == null || entry.varies(request)) {
+      return null;
+    }
+
+    entry.body.retain();
+
+    return entry;
+  }
+
+  long hits() {
+    return hits.sum();
+  }
+
+  private boolean isStorable(final HttpRequest request, final HttpResponse response) {
+    final Map<String, String> directives = directives(response.headers());
+    final long length =
+        tryToGetSilent(() -> parseLong(response.headers().get(CONTENT_LENGTH))).orElse(-1L);
+
+    return STATUSES.contains(response.status().code())
+        && !directives.containsKey(NO_STORE)
+        && !directives.containsKey(PRIVATE)
+        && !response.headers().getAll(VARY).contains("*")
+        && !response.headers().contains(SET_COOKIE)
+        && (!request.headers().contains(AUTHORIZATION)
+            || directives.containsKey(PUBLIC)
+            || directives.containsKey(S_MAXAGE)
+            || directives.containsKey(MUST_REVALIDATE))
+        && length >= 0
+        && length <= maxEntrySize
+        && (freshness(response.headers(), directives) != -1
+            || response.headers().contains(ETAG)
+            || response.headers().contains(LAST_MODIFIED));
+  }
+
+  /**
+   * Returns the key of the variant of the URI of the request. The caller should hold the lock.
+   *
+   * @param request the request.
+   * @return The key.
+   */
+  private String key(final HttpRequest request) {
+    return key(request, vary.get(request.uri()));
+  }
+
+  synchronized long memory() {
+    return memory;
+  }
+
+  long misses() {
+    return misses.sum();
+  }
+
+  /**
+   * Stores the entry for the request. The names in its <code>Vary</code> header become those of
+   * the URI of the request. An evicted entry also takes those names along, which makes the other
+   * variants of its URI unreachable until a new one is stored.
+   *
+   * @param request the request.
+   * @param entry the entry.
+   */
+  private synchronized void put(final HttpRequest request, final Entry entry) {
+    final List<String> names =
+        entry.vary.isEmpty() ? null : entry.vary.keySet().stream().sorted().toList();
+    final String key = key(request, names);
+    final Entry previous = entries.remove(key);
+
+    if (previous != null) {
+      memory -= previous.size;
+      previous.body.release();
+    }
+
+    final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+
+    while (memory + entry.size > maxMemory && iterator.hasNext()) {
+      final Map.Entry<String, Entry> eldest = iterator.next();
+
+      iterator.remove();
+      memory -= eldest.getValue().size;
+      eldest.getValue().body.release();
+
+      if (!eldest.getValue().vary.isEmpty()) {
+        vary.remove(uri(eldest.getKey()));
+      }
+    }
+
+    if (names != null) {
+      vary.put(request.uri(), names);
+    } else {
+      vary.remove(request.uri());
+    }
+
+    entries.put(key, entry);
+    memory += entry.size;
+  }
+
+  private CompletionStage<Publisher<ByteBuf>> revalidate(
+      final HttpRequest request,
+      final Publisher<ByteBuf> requestBody,
+      final HttpResponse response,
+      final Entry entry) {
+    revalidations.increment();
+
+    if (entry.etag != null) {
+      request.headers().set(IF_NONE_MATCH, entry.etag);
+    } else {
+      request.headers().set(IF_MODIFIED_SINCE, entry.lastModified);
+    }
+
+    final CompletionStage<Publisher<ByteBuf>> stage = handler.apply(request, requestBody, response);
+
+    return cancellable(
+        stage,
+        stage
+            .whenComplete(
+                (body, e) -> {
+                  if (e != null) {
+                    entry.body.release();
+                  }
+                })
+            .thenCompose(body -> revalidated(request, response, entry, body)));
+  }
+
+  private CompletionStage<Publisher<ByteBuf>> revalidated(
+      final HttpRequest request,
+      final HttpResponse response,
+      final Entry entry,
+      final Publisher<ByteBuf> body) {
+    if (!NOT_MODIFIED.equals(response.status())) {
+      entry.body.release();
+
+      return store(request, response, body);
+    }
+
+    return BodyBuffer.buffer(body)
+        .thenApply(
+            b -> {
+              final Entry refreshed = entry.refresh(response.headers());
+
+              b.release();
+              refreshed.body.retain();
+              put(request, refreshed);
+              response.headers().clear();
+
+              return refreshed.apply(response);
+            });
+  }
+
+  long revalidations() {
+    return revalidations.sum();
+  }
+
+  private CompletionStage<Publisher<ByteBuf>> store(
+      final HttpRequest request, final HttpResponse response, final Publisher<ByteBuf> body) {
+    if (!isStorable(request, response)) {
+      if (!NOT_MODIFIED.equals(response.status())) {
+        evict(request);
+      }
+
+      return completedFuture(body);
+    }
+
+    return BodyBuffer.buffer(body)
+        .thenApply(
+            buffer -> {
+              final ByteBuf stored =
+                  PooledByteBufAllocator.DEFAULT.directBuffer(buffer.readableBytes());
+
+              stored.writeBytes(buffer);
+              buffer.release();
+
+              stored.retain();
+              put(request, new Entry(request, response, stored));
+
+              return Source.of(stored.duplicate());
+            });
+  }
+
+  private static class Entry {
+    private final ByteBuf body;
+    private final long created;
+    private final String etag;
+    private final long freshness;
+    private final HttpHeaders headers;
+    private final String lastModified;
+    private final boolean noCache;
+    private final long size;
+    private final HttpResponseStatus status;
+    private final Map<String, List<String>> vary;
+
+    private Entry(final HttpRequest request, final HttpResponse response, final ByteBuf body) {
+      this(
+          response.status(),
+          response.headers().copy(),
+          body,
+          vary(request, response.headers()),
+          currentTimeMillis());
+    }
+
+    private Entry(
+        final HttpResponseStatus status,
+        final HttpHeaders headers,
+        final ByteBuf body,
+        final Map<String, List<String>> vary,
+        final long created) {
+      final Map<String, String> directives = directives(headers);
+
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+      this.vary = vary;
+      this.created = created;
+      etag = headers.get(ETAG);
+      lastModified = headers.get(LAST_MODIFIED);
+      freshness = freshness(headers, directives);
+      noCache = directives.containsKey(NO_CACHE);
+      size = body.capacity();
+    }
+
+    private static Map<String, List<String>> vary(
+        final HttpRequest request, final HttpHeaders headers) {
+      final Map<String, List<String>> result = new HashMap<>();
+
+      headers
+          .getAll(VARY)
+          .forEach(
+              value -> {
+                for (final String name : value.split(",")) {
+                  final String trimmed = name.trim().toLowerCase();
+
+                  result.put(trimmed, request.headers().getAll(trimmed));
+                }
+              });
+
+      return result;
+    }
+
+    /**
+     * Writes the entry to the response. The caller must own a reference to the body, which is
+     * handed over to the response.
+     *
+     * @param response the response.
+     * @return The body.
+     */
+    private Publisher<ByteBuf> apply(final HttpResponse response) {
+      response.setStatus(status);
+      response.headers().set(headers);
+      response.headers().set(AGE, String.valueOf(max(0, currentTimeMillis() - created) / 1000));
+
+      return Source.of(body.duplicate());
+    }
+
+    private boolean isFresh() {
+      return !noCache && currentTimeMillis() - created < freshness;
+    }
+
+    private boolean matches(final HttpRequest request) {
+      return etag != null
+          ? request.headers().getAll(IF_NONE_MATCH).stream()
+              .flatMap(v -> List.of(v.split(",")).stream())
+              .map(String::trim)
+              .anyMatch(v -> v.equals(etag) || v.equals("*"))
+          : lastModified != null && lastModified.equals(request.headers().get(IF_MODIFIED_SINCE));
+    }
+
+    private Publisher<ByteBuf> notModified(final HttpResponse response) {
+      body.release();
+      response.setStatus(NOT_MODIFIED);
+      response.headers().set(headers);
+      response.headers().remove(CONTENT_LENGTH);
+
+      return empty();
+    }
+
+    private Entry refresh(final HttpHeaders notModified) {
+      final HttpHeaders updated = headers.copy();
+
+      for (final String name : List.of(CACHE_CONTROL, DATE, ETAG, EXPIRES, LAST_MODIFIED)) {
+        if (notModified.contains(name)) {
+          updated.set(name, notModified.getAll(name));
+        }
+      }
+
+      return new Entry(status, updated, body, vary, currentTimeMillis());
+    }
+
+    private boolean varies(final HttpRequest request) {
+      return vary.entrySet().stream()
+          .anyMatch(e -> !e.getValue().equals(request.headers().getAll(e.getKey())));
+    }
+  }
+}
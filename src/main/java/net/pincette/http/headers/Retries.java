@@ -0,0 +1,328 @@
+package net.pincette.http.headers;
+
+import static io.netty.handler.codec.http.HttpMethod.DELETE;
+import static io.netty.handler.codec.http.HttpMethod.GET;
+import static io.netty.handler.codec.http.HttpMethod.HEAD;
+import static io.netty.handler.codec.http.HttpMethod.OPTIONS;
+import static io.netty.handler.codec.http.HttpMethod.PUT;
+import static io.netty.handler.codec.http.HttpMethod.TRACE;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpUtil.getContentLength;
+import static io.netty.handler.codec.http.HttpUtil.isTransferEncodingChunked;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.CompletableFuture.delayedExecutor;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.BodyBuffer.cancellable;
+import static net.pincette.http.headers.BodyBuffer.discard;
+import static net.pincette.rs.Util.empty;
+
+import com.typesafe.config.Config;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import net.pincette.netty.http.RequestHandler;
+import net.pincette.rs.Source;
+
+/**
+ * Retries and hedges the idempotent requests of a route. An attempt is retried when it fails or
+ * when it returns one of the configured status codes. When hedging is on and an attempt hasn't
+ * responded after the configured percentile of the latency of the route, another attempt is sent.
+ * The first usable response wins. The other attempts are cancelled, which the layers in front of
+ * the forwarder pass on to it. Cancelling the request cancels all of its attempts. With a balancer
+ * the attempts can go to different endpoints.
+ *
+ * <p>Every request deposits a fraction of a token in the budget and every extra attempt takes a
+ * whole one, which bounds the extra load on the upstream. The request body is buffered, so that it
+ * can be sent again. Requests with a larger or a chunked body are forwarded only once.
+ *
+ * @author Werner Donné
+ */
+class Retries implements RequestHandler {
+  private static final String ATTEMPTS = "attempts";
+  private static final String BUDGET = "budget";
+  private static final String BURST = "burst";
+  private static final String HEDGE = "hedge";
+  private static final Set<HttpMethod> IDEMPOTENT = Set.of(DELETE, GET, HEAD, OPTIONS, PUT, TRACE);
+  private static final String MAX_BODY_SIZE = "maxBodySize";
+  private static final int MIN_SAMPLES = 100;
+  private static final String MIN_DELAY = "minDelay";
+  private static final String PERCENTILE = "percentile";
+  private static final String RETRY = "retry";
+  private static final String STATUSES = "statuses";
+  private static final long TOKEN = 1000;
+
+  private final int attempts;
+  private final long capacity;
+  private final long deposit;
+  private final LongAdder exhausted = new LongAdder();
+  private final RequestHandler handler;
+  private final boolean hedge;
+  private final LongAdder hedges = new LongAdder();
+  private final Histogram latency = new Histogram();
+  private final long maxBodySize;
+  private final long minDelay;
+  private final double percentile;
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final Set<Integer> statuses;
+  private final AtomicLong tokens;
+
+  private Retries(final RequestHandler handler, final Config config) {
+    this.handler = handler;
+    attempts = max(1, configValue(config::getInt, ATTEMPTS).orElse(2));
+    capacity = configValue(config::getInt, BURST).orElse(10) * TOKEN;
+    deposit = (long) (configValue(config::getDouble, BUDGET).orElse(0.1) * TOKEN);
+    maxBodySize = configValue(config::getBytes, MAX_BODY_SIZE).orElse(64L * 1024);
+    statuses =
+        Set.copyOf(
+            configValue(config::getIntList, STATUSES).orElseGet(() -> List.of(502, 503, 504)));
+    tokens = new AtomicLong(capacity);
+
+    final Config hedgeConfig = configValue(config::getConfig, HEDGE).orElse(null);
+
+    hedge = hedgeConfig != null;
+    percentile = hedge ? configValue(hedgeConfig::getDouble, PERCENTILE).orElse(0.95) : 1.0;
+    minDelay =
+        hedge
+            ? configValue(hedgeConfig::getDuration, MIN_DELAY)
+                .orElse(Duration.ofMillis(5))
+                .toNanos()
+            : 0;
+  }
+
+  /**
+   * Retries the requests of a route when its configuration has a <code>retry</code> block.
+   *
+   * @param handler the forwarder of the route.
+   * @param config the configuration of the route.
+   * @param route the path prefix of the route.
+   * @param metrics where the numbers of retries and hedges are exposed.
+   * @return The wrapped forwarder or the original one.
+   */
+  static RequestHandler retried(
+      final RequestHandler handler,
+      final Config config,
+      final String route,
+      final Metrics metrics) {
+    return configValue(config::getConfig, RETRY)
+        .map(c -> new Retries(handler, c))
+        .map(
+            r -> {
+              metrics.retries(route, r);
+
+              return (RequestHandler) r;
+            })
+        .orElse(handler);
+  }
+
+  public CompletionStage<Publisher<ByteBuf>> apply(
+      final HttpRequest request,
+      final Publisher<ByteBuf> requestBody,
+      final HttpResponse response) {
+    if (!IDEMPOTENT.contains(request.method())
+        || isTransferEncodingChunked(request)
+        || getContentLength(request, 0L) > maxBodySize) {
+      return handler.apply(request, requestBody, response);
+    }
+
+    requests.increment();
+    deposit();
+
+    final Call call = new Call(request, response);
+
+    return cancellable(BodyBuffer.buffer(requestBody).thenCompose(call::start), call::cancel);
+  }
+
+  private void deposit() {
+    long current = tokens.get();
+
+    while (current < capacity
+        && !tokens.compareAndSet(current, min(capacity, current + deposit))) {
+      current = tokens.get();
+    }
+  }
+
+  long exhausted() {
+    return exhausted.sum();
+  }
+
+  /**
+   * The delay after which a hedge is sent. There is no hedge until enough latencies have been
+   * recorded.
+   *
+   * @return The delay in nanoseconds or -1 when there should be no hedge.
+   */
+  private long hedgeDelay() {
+    return hedge && latency.count() >= MIN_SAMPLES
+        ? max(minDelay, latency.percentile(percentile))
+        : -1;
+  }
+
+  long hedges() {
+    return hedges.sum();
+  }
+
+  long requests() {
+    return requests.sum();
+  }
+
+  long retries() {
+    return retries.sum();
+  }
+
+  private boolean withdraw() {
+    long current = tokens.get();
+
+    while (current >= TOKEN) {
+      if (tokens.compareAndSet(current, current - TOKEN)) {
+        return true;
+      }
+
+      current = tokens.get();
+    }
+
+    exhausted.increment();
+
+    return false;
+  }
+
+  /**
+   * The attempts of one request. The decisions are taken under the lock of the call, because
+   * hedged attempts may complete concurrently.
+   */
+  private class Call {
+    private final HttpRequest request;
+    private final HttpResponse response;
+    private final List<CompletableFuture<Publisher<ByteBuf>>> pending = new ArrayList<>();
+    private final CompletableFuture<Publisher<ByteBuf>> result = new CompletableFuture<>();
+    private ByteBuf body;
+    private int outstanding;
+    private int started;
+
+    private Call(final HttpRequest request, final HttpResponse response) {
+      this.request = request;
+      this.response = response;
+    }
+
+    private void attempt() {
+      final HttpResponse attemptResponse = new DefaultHttpResponse(response.protocolVersion(), OK);
+      final long start = nanoTime();
+      final CompletableFuture<Publisher<ByteBuf>> stage =
+          handler
+              .apply(
+                  request,
+                  body.readableBytes() > 0 ? Source.of(body.retainedDuplicate()) : empty(),
+                  attemptResponse)
+              .toCompletableFuture();
+
+      ++started;
+      ++outstanding;
+      pending.add(stage);
+      stage.whenComplete((b, e) -> completed(stage, attemptResponse, b, e, nanoTime() - start));
+    }
+
+    /** Cancels the call, also when it hasn't started yet. */
+    private synchronized void cancel() {
+      result.cancel(false);
+      cancelPending();
+    }
+
+    /**
+     * Cancels the attempts that are still running. The layers in front of the forwarder pass the
+     * cancellation on to it, which closes the upstream connection, or they discard the body when it
+     * arrives anyway.
+     */
+    private void cancelPending() {
+      final List<CompletableFuture<Publisher<ByteBuf>>> losers = new ArrayList<>(pending);
+
+      pending.clear();
+      losers.forEach(s -> s.cancel(false));
+    }
+
+    private synchronized void completed(
+        final CompletableFuture<Publisher<ByteBuf>> stage,
+        final HttpResponse attemptResponse,
+        final Publisher<ByteBuf> responseBody,
+        final Throwable exception,
+        final long duration) {
+      --outstanding;
+      pending.remove(stage);
+
+      if (result.isDone()) {
+        if (responseBody != null) {
+          discard(responseBody);
+        }
+
+        return;
+      }
+
+      final boolean retryable =
+          exception != null || statuses.contains(attemptResponse.status().code());
+
+      if (!retryable) {
+        latency.record(duration);
+      }
+
+      if (retryable && (outstanding > 0 || (started < attempts && withdraw()))) {
+        if (responseBody != null) {
+          discard(responseBody);
+        }
+
+        if (outstanding == 0) {
+          retries.increment();
+          attempt();
+        }
+
+        return;
+      }
+
+      if (exception != null) {
+        result.completeExceptionally(exception);
+      } else {
+        response.setStatus(attemptResponse.status());
+        response.headers().set(attemptResponse.headers());
+        result.complete(responseBody);
+      }
+
+      cancelPending();
+    }
+
+    private synchronized void hedge() {
+      if (!result.isDone() && started < attempts && withdraw()) {
+        hedges.increment();
+        attempt();
+      }
+    }
+
+    private synchronized CompletionStage<Publisher<ByteBuf>> start(final ByteBuf body) {
+      final long delay = hedgeDelay();
+
+      this.body = body;
+      result.whenComplete((r, e) -> body.release());
+
+      if (!result.isDone()) {
+        attempt();
+
+        if (delay != -1 && attempts > 1) {
+          delayedExecutor(delay, NANOSECONDS).execute(this::hedge);
+        }
+      }
+
+      return result;
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package net.pincette.http.headers;
+
+import com.typesafe.config.Config;
+import java.net.URI;
+import java.util.List;
+
+/**
+ * A route entry from the configuration.
+ *
+ * @author Werner Donné
+ */
+class Route {
+  final Config config;
+  final List<URI> endPoints;
+  final String pathPrefix;
+
+  Route(final String pathPrefix, final List<URI> endPoints, final Config config) {
+    this.pathPrefix = pathPrefix;
+    this.endPoints = endPoints;
+    this.config = config;
+  }
+}
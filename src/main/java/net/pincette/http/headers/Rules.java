@@ -0,0 +1,225 @@
+package net.pincette.http.headers;
+
+import static java.util.logging.Level.WARNING;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.Application.LOGGER;
+
+import com.typesafe.config.Config;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.AsciiString;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BiFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Header rewrite rules from the <code>rules</code> configuration entry. They are compiled once and
+ * work directly on the Netty headers, so they don't need any conversion. The request rules run
+ * before the plugins and the response rules after them.
+ *
+ * <p>A rule is an object with one of the fields <code>add</code>, <code>set</code>, <code>remove
+ * </code>, <code>rename</code> or <code>copy</code>, which has the header name. The values come
+ * from the fields <code>value</code> or <code>env</code>. A <code>set</code> rule can also take the
+ * value of the header in <code>from</code>, rewritten with <code>regex</code> and <code>
+ * replacement</code>. The rules <code>rename</code> and <code>copy</code> have a <code>to</code>
+ * field.
+ *
+ * @author Werner Donné
+ */
+class Rules {
+  static final Rules EMPTY = new Rules(new Rule[0], new Rule[0]);
+
+  private static final String ADD = "add";
+  private static final String COPY = "copy";
+  private static final String ENV = "env";
+  private static final String FROM = "from";
+  private static final String REGEX = "regex";
+  private static final String REMOVE = "remove";
+  private static final String RENAME = "rename";
+  private static final String REPLACEMENT = "replacement";
+  private static final String REQUEST = "request";
+  private static final String RESPONSE = "response";
+  private static final String RULES = "rules";
+  private static final String SET = "set";
+  private static final String TO = "to";
+  private static final String VALUE = "value";
+
+  private final Rule[] request;
+  private final Rule[] response;
+
+  private Rules(final Rule[] request, final Rule[] response) {
+    this.request = request;
+    this.response = response;
+  }
+
+  private static Rule[] compileRules(final List<? extends Config> rules) {
+    return rules.stream().flatMap(r -> compileRule(r).stream()).toArray(Rule[]::new);
+  }
+
+  private static Optional<Rule> compileRule(final Config rule) {
+    final Optional<Rule> result =
+        configValue(rule::getString, ADD)
+            .flatMap(name -> value(rule).map(v -> add(new AsciiString(name), v)))
+            .or(() -> configValue(rule::getString, SET).flatMap(name -> set(name, rule)))
+            .or(() -> configValue(rule::getString, REMOVE).map(n -> remove(new AsciiString(n))))
+            .or(() -> fromTo(rule, RENAME, Rules::rename))
+            .or(() -> fromTo(rule, COPY, Rules::copy));
+
+    if (result.isEmpty()) {
+      LOGGER.log(WARNING, "Invalid header rule {0}", rule.root().render());
+    }
+
+    return result;
+  }
+
+  private static Rule add(final AsciiString name, final String value) {
+    return headers -> headers.add(name, value);
+  }
+
+  private static Rule copy(final AsciiString name, final AsciiString to) {
+    return headers -> {
+      if (headers.contains(name)) {
+        headers.set(to, headers.getAll(name));
+      }
+    };
+  }
+
+  private static Optional<Rule> fromTo(
+      final Config rule,
+      final String field,
+      final BiFunction<AsciiString, AsciiString, Rule> compile) {
+    return configValue(rule::getString, field)
+        .flatMap(
+            name ->
+                configValue(rule::getString, TO)
+                    .map(to -> compile.apply(new AsciiString(name), new AsciiString(to))));
+  }
+
+  private static Rule remove(final AsciiString name) {
+    return headers -> headers.remove(name);
+  }
+
+  private static Rule rename(final AsciiString name, final AsciiString to) {
+    return headers -> {
+      if (headers.contains(name)) {
+        headers.set(to, headers.getAll(name));
+        headers.remove(name);
+      }
+    };
+  }
+
+  /**
+   * Compiles the <code>rules</code> entry of a configuration.
+   *
+   * @param config the configuration of the server or a route.
+   * @return The compiled rules.
+   */
+  static Rules rules(final Config config) {
+    return configValue(config::getConfig, RULES)
+        .map(
+            c ->
+                new Rules(
+                    configValue(c::getConfigList, REQUEST)
+                        .map(Rules::compileRules)
+                        .orElse(EMPTY.request),
+                    configValue(c::getConfigList, RESPONSE)
+                        .map(Rules::compileRules)
+                        .orElse(EMPTY.response)))
+        .orElse(EMPTY);
+  }
+
+  private static void run(final Rule[] rules, final HttpHeaders headers) {
+    for (final Rule rule : rules) {
+      rule.apply(headers);
+    }
+  }
+
+  private static Optional<Rule> set(final String name, final Config rule) {
+    final AsciiString header = new AsciiString(name);
+
+    return configValue(rule::getString, FROM)
+        .map(
+            from ->
+                setFrom(
+                    header,
+                    new AsciiString(from),
+                    configValue(rule::getString, REGEX).map(Pattern::compile).orElse(null),
+                    configValue(rule::getString, REPLACEMENT).orElse(null)))
+        .or(() -> value(rule).map(v -> headers -> headers.set(header, v)));
+  }
+
+  private static Rule setFrom(
+      final AsciiString name,
+      final AsciiString from,
+      final Pattern regex,
+      final String replacement) {
+    return headers -> {
+      final String value = headers.get(from);
+
+      if (value != null) {
+        if (regex == null) {
+          headers.set(name, value);
+        } else {
+          final Matcher matcher = regex.matcher(value);
+
+          if (matcher.matches()) {
+            headers.set(name, replacement != null ? matcher.replaceAll(replacement) : value);
+          }
+        }
+      }
+    };
+  }
+
+  private static Optional<String> value(final Config rule) {
+    return configValue(rule::getString, VALUE)
+        .or(
+            () ->
+                configValue(rule::getString, ENV)
+                    .flatMap(
+                        env -> {
+                          final Optional<String> value = Optional.ofNullable(System.getenv(env));
+
+                          if (value.isEmpty()) {
+                            LOGGER.log(WARNING, "The environment variable {0} is not set", env);
+                          }
+
+                          return value;
+                        }));
+  }
+
+  /**
+   * Appends other rules to these.
+   *
+   * @param other the other rules.
+   * @return The combined rules.
+   */
+  Rules and(final Rules other) {
+    if (isEmpty()) {
+      return other;
+    }
+
+    return other.isEmpty()
+        ? this
+        : new Rules(
+            Stream.concat(Stream.of(request), Stream.of(other.request)).toArray(Rule[]::new),
+            Stream.concat(Stream.of(response), Stream.of(other.response)).toArray(Rule[]::new));
+  }
+
+  boolean isEmpty() {
+    return request.length == 0 && response.length == 0;
+  }
+
+  void request(final HttpHeaders headers) {
+    run(request, headers);
+  }
+
+  void response(final HttpHeaders headers) {
+    run(response, headers);
+  }
+
+  private interface Rule {
+    void apply(HttpHeaders headers);
+  }
+}
@@ -2,45 +2,60 @@ package net.pincette.http.headers;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_IMPLEMENTED;
-import static java.net.http.HttpClient.newBuilder;
+import static java.lang.System.getProperty;
+import static java.time.Duration.ofMinutes;
+import static java.time.Duration.ofSeconds;
 import static java.util.Optional.ofNullable;
 import static java.util.concurrent.CompletableFuture.completedFuture;
 import static java.util.logging.Level.FINEST;
+import static java.util.logging.Level.SEVERE;
 import static java.util.logging.Level.WARNING;
+import static java.util.stream.Stream.concat;
 import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.AccessLog.accessLog;
+import static net.pincette.http.headers.Admission.admission;
 import static net.pincette.http.headers.Application.LOGGER;
+import static net.pincette.http.headers.BodyBuffer.cancellable;
+import static net.pincette.http.headers.BodyBuffer.discard;
+import static net.pincette.http.headers.Capabilities.capabilities;
+import static net.pincette.http.headers.Coalescer.coalesced;
+import static net.pincette.http.headers.Compression.compressed;
+import static net.pincette.http.headers.Metrics.metrics;
+import static net.pincette.http.headers.PluginLoader.loadPlugins;
+import static net.pincette.http.headers.PrefixTrie.prefixTrie;
+import static net.pincette.http.headers.ResponseCache.cached;
+import static net.pincette.http.headers.Retries.retried;
+import static net.pincette.http.headers.Timeouts.deadline;
 import static net.pincette.netty.http.Util.wrapTracing;
 import static net.pincette.rs.Util.empty;
-import static net.pincette.util.Collections.map;
 import static net.pincette.util.Collections.reverse;
 import static net.pincette.util.Or.tryWith;
 import static net.pincette.util.Pair.pair;
-import static net.pincette.util.Plugins.loadPlugins;
 import static net.pincette.util.StreamUtil.stream;
 import static net.pincette.util.Util.tryToGetRethrow;
 
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 import io.netty.buffer.ByteBuf;
-import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpClient.Redirect;
-import java.net.http.HttpClient.Version;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
-import java.util.ServiceLoader;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
+import net.pincette.http.headers.AccessLog.Recorder;
 import net.pincette.http.headers.plugin.Plugin;
 import net.pincette.http.headers.plugin.RequestResult;
-import net.pincette.netty.http.Forwarder;
 import net.pincette.netty.http.HttpServer;
 import net.pincette.netty.http.RequestHandler;
 import net.pincette.util.Cases;
@@ -50,25 +65,79 @@ import net.pincette.util.Pair;
  * @author Werner Donné
  */
 public class Server {
+  private static final String CONFIG_FILE = "config.file";
+  private static final String DELAY = "delay";
+  private static final String DRAIN_TIMEOUT = "drainTimeout";
   private static final String END_POINT = "endPoint";
+  private static final String END_POINTS = "endPoints";
   private static final String FORWARD_TO = "forwardTo";
   private static final String PATH_PREFIX = "pathPrefix";
+  private static final String PATHS = "paths";
   private static final String PLUGINS = "plugins";
+  private static final String RELOAD = "reload";
   private static final String ROUTES = "routes";
+  private static final String SERVER = "server";
+  private static final String WATCH = "watch";
 
+  private final AccessLog accessLog;
+  private final Supplier<Config> config;
+  private final Duration drainTimeout;
+  private final AtomicReference<Generation> generation = new AtomicReference<>();
   private final HttpServer httpServer;
-
+  private final Metrics metrics;
+  private final NettyServer nettyServer;
+  private final AtomicBoolean served = new AtomicBoolean();
+  private final Transport transport;
+  private final Watcher watcher;
+
+  /**
+   * Creates the server with a fixed configuration.
+   *
+   * @param port the port to listen on.
+   * @param config the configuration.
+   */
   public Server(final int port, final Config config) {
-    httpServer =
-        new HttpServer(
-            port,
-            wrapTracing(handler(trace(config, () -> "Config: " + config), getClient()), LOGGER));
+    this(port, () -> config);
   }
 
-  private static java.net.http.HttpHeaders convertHeaders(
-      final io.netty.handler.codec.http.HttpHeaders headers) {
-    return java.net.http.HttpHeaders.of(
-        map(headers.names().stream().map(n -> pair(n, headers.getAll(n)))), (k, v) -> true);
+  /**
+   * Creates the server. Without a <code>server</code> configuration block it runs on the default
+   * HTTP server. With it, it runs on its own bootstrap with the given transport options and the
+   * Netty upstream client shares its worker event loops.
+   *
+   * <p>The configuration is fetched again on every reload. The port and the <code>server</code>,
+   * <code>metrics</code>, <code>accessLog</code> and <code>reload</code> blocks are only read once.
+   *
+   * @param port the port to listen on.
+   * @param config the function that produces the current configuration.
+   */
+  public Server(final int port, final Supplier<Config> config) {
+    final Config initial = config.get();
+    final Optional<Config> server = configValue(initial::getConfig, SERVER);
+    final Optional<Config> reload = configValue(initial::getConfig, RELOAD);
+
+    this.config = config;
+    transport = server.map(Transport::transport).orElse(null);
+    metrics = metrics(initial);
+    accessLog = accessLog(initial);
+    drainTimeout =
+        reload.flatMap(c -> configValue(c::getDuration, DRAIN_TIMEOUT)).orElse(ofMinutes(1));
+    generation.set(generation(initial, metrics, accessLog, transport));
+
+    if (accessLog != null) {
+      metrics.accessLog(accessLog);
+    }
+
+    final RequestHandler handler = wrapTracing(metrics.requests(this::apply), LOGGER);
+
+    httpServer = transport == null ? new HttpServer(port, handler) : null;
+    nettyServer =
+        server.map(c -> new NettyServer(port, handler, transport, c)).orElse(null);
+    watcher =
+        reload
+            .filter(c -> configValue(c::getBoolean, WATCH).orElse(false))
+            .map(c -> watcher(initial, c, this::reload))
+            .orElse(null);
   }
 
   private static RequestHandler devNull() {
@@ -79,169 +148,467 @@ public class Server {
     };
   }
 
-  private static HttpClient getClient() {
-    return newBuilder().version(Version.HTTP_1_1).followRedirects(Redirect.NORMAL).build();
+  /**
+   * Selects the forwarder with the longest path prefix that matches the path of the request URI.
+   * The path is taken from the URI without parsing it, unless it has percent-encoded characters.
+   *
+   * @param forwarders the forwarders per path prefix.
+   * @param uri the request URI.
+   * @return The selected forwarder.
+   */
+  static Optional<RequestHandler> getForwarder(
+      final PrefixTrie<RequestHandler> forwarders, final String uri) {
+    if (uri.indexOf('%') != -1) {
+      return tryToGetRethrow(() -> new URI(uri))
+          .map(URI::getPath)
+          .flatMap(forwarders::longestPrefix);
+    }
+
+    final int start = pathStart(uri);
+
+    return forwarders.longestPrefix(uri, start, pathEnd(uri, start));
+  }
+
+  private static List<URI> endPoints(final Config config) {
+    return configValue(config::getStringList, END_POINTS)
+        .or(() -> configValue(config::getString, END_POINT).map(List::of))
+        .orElseGet(List::of)
+        .stream()
+        .flatMap(e -> tryToGetRethrow(() -> new URI(e)).stream())
+        .toList();
   }
 
-  private static Optional<RequestHandler> getForwarder(
-      final List<Pair<String, RequestHandler>> forwarders, final String path) {
-    return forwarders.stream().filter(f -> path.startsWith(f.first)).findFirst().map(f -> f.second);
+  private static RequestHandler forwarder(
+      final Route route, final Function<URI, RequestHandler> forwarder) {
+    return route.endPoints.size() == 1
+        ? forwarder.apply(route.endPoints.get(0))
+        : new Balancer(route.endPoints, forwarder, route.config);
   }
 
-  private static RequestHandler forwarder(final Config config, final HttpClient client) {
+  /**
+   * Builds everything that depends on the configuration and the plugins. The series of the
+   * generation go to a child of the root metrics.
+   *
+   * @param config the configuration.
+   * @param root the metrics of the server.
+   * @param accessLog the access log or <code>null</code>.
+   * @param transport the transport of the server or <code>null</code> for the default server.
+   * @return The generation.
+   */
+  private static Generation generation(
+      final Config config,
+      final Metrics root,
+      final AccessLog accessLog,
+      final Transport transport) {
+    final Metrics metrics = root.child();
+
+    try {
+      final List<LoadedPlugin> plugins =
+          plugins(trace(config, () -> "Config: " + config))
+              .map(metrics::measured)
+              .map(Capabilities::declared)
+              .toList();
+
+      plugins.forEach(p -> LOGGER.info(() -> "Loaded plugin " + p));
+
+      if (plugins.isEmpty()) {
+        LOGGER.log(WARNING, "No plugins are loaded.");
+      }
+
+      final Generation generation =
+          new Generation(
+              metrics,
+              new Chains(plugins, config, accessLog),
+              new Upstream(config, transport));
+
+      generation.handler(
+          admission(deadline(handler(config, generation), config), config, null, metrics));
+
+      return generation;
+    } catch (RuntimeException e) {
+      metrics.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Routes the requests first, so that each route only runs its own plugin chain. Requests that
+   * don't match a route go through the default chain.
+   *
+   * @param config the configuration.
+   * @param generation the chains, upstream forwarders and metrics of the configuration.
+   * @return The handler.
+   */
+  private static RequestHandler handler(final Config config, final Generation generation) {
     return Cases.<Config, RequestHandler>withValue(config)
         .orGet(
             c -> configValue(c::getString, FORWARD_TO),
-            uri -> singleRoute(uri, client).orElse(null))
-        .orGet(c -> configValue(c::getConfigList, ROUTES), routes -> router(routes(routes), client))
+            uri -> singleRoute(uri, generation).orElse(null))
+        .orGet(
+            c -> configValue(c::getConfigList, ROUTES),
+            routes -> router(routes(routes), generation))
         .get()
-        .orElseGet(Server::devNull);
+        .orElseGet(() -> generation.chains.handler(devNull()));
   }
 
-  private static RequestHandler handler(final Config config, final HttpClient client) {
-    final List<Plugin> plugins = plugins(config).toList();
+  /**
+   * Composes the plugin chain in front of the forwarder.
+   *
+   * @param plugins the plugins in chain order.
+   * @param forwarder the handler at the end of the chain.
+   * @param execution determines where the continuations of the chain run.
+   * @return The composed handler.
+   */
+  static RequestHandler handler(
+      final List<Plugin> plugins, final RequestHandler forwarder, final Execution execution) {
+    return handler(plugins, Rules.EMPTY, forwarder, execution);
+  }
 
-    plugins.forEach(p -> LOGGER.info(() -> "Loaded plugin " + p));
+  /**
+   * Composes the header rules and the plugin chain in front of the forwarder. The request rules
+   * run before the plugins and the response rules after them.
+   *
+   * @param plugins the plugins in chain order.
+   * @param rules the compiled header rules.
+   * @param forwarder the handler at the end of the chain.
+   * @param execution determines where the continuations of the chain run.
+   * @return The composed handler.
+   */
+  static RequestHandler handler(
+      final List<Plugin> plugins,
+      final Rules rules,
+      final RequestHandler forwarder,
+      final Execution execution) {
+    return handler(plugins, rules, forwarder, execution, Recorder.DISABLED);
+  }
 
-    if (plugins.isEmpty()) {
-      LOGGER.log(WARNING, "No plugins are loaded.");
-    }
+  /**
+   * Composes the header rules and the plugin chain in front of the forwarder and records the
+   * requests in the access log. Cancelling the stage of a request cancels the stage of the
+   * forwarder.
+   *
+   * @param plugins the plugins in chain order.
+   * @param rules the compiled header rules.
+   * @param forwarder the handler at the end of the chain.
+   * @param execution determines where the continuations of the chain run.
+   * @param recorder the access log recorder of the chain.
+   * @return The composed handler.
+   */
+  static RequestHandler handler(
+      final List<Plugin> plugins,
+      final Rules rules,
+      final RequestHandler forwarder,
+      final Execution execution,
+      final Recorder recorder) {
+    final Stage plugged =
+        stream(reverse(plugins))
+            .reduce(
+                stage(forwarder),
+                (next, plugin) -> stage(next, plugin, execution),
+                (s1, s2) -> s1);
+    final Stage chain = rules.isEmpty() ? plugged : stage(plugged, rules);
 
-    return stream(reverse(plugins))
-        .reduce(forwarder(config, client), Server::handler, (n1, n2) -> n1);
+    return (request, requestBody, response) -> {
+      final Exchange exchange = new Exchange(request, requestBody, response);
+      final long start = recorder.start();
+
+      return cancellable(
+          recorder.recorded(
+              exchange,
+              start,
+              chain
+                  .apply(exchange)
+                  .thenApply(
+                      body -> {
+                        exchange.responseHeaders.flush();
+                        return body;
+                      })),
+          exchange::cancel);
+    };
   }
 
-  private static RequestHandler handler(final RequestHandler next, final Plugin plugin) {
-    return (request, requestBody, response) ->
-        plugin
-            .request(headers(request))
-            .thenComposeAsync(
-                result ->
-                    tryWith(
-                            () ->
-                                ofNullable(result.request)
-                                    .map(
-                                        req ->
-                                            next.apply(
-                                                setHeaders(request, req), requestBody, response)))
-                        .or(() -> returnImmediately(result, response))
-                        .get()
-                        .orElseGet(() -> next.apply(request, requestBody, response))
-                        .thenComposeAsync(
-                            body ->
-                                result.response == null
-                                    ? response(response, plugin, result.responseWrapper)
-                                        .thenApply(r -> body)
-                                    : completedFuture(body)));
+  /** Logs the time between the start of the JVM and the first request, to measure startup. */
+  private static void logFirstRequest() {
+    ProcessHandle.current()
+        .info()
+        .startInstant()
+        .ifPresent(
+            start ->
+                LOGGER.info(
+                    () ->
+                        "First request "
+                            + Duration.between(start, Instant.now()).toMillis()
+                            + "ms after the start of the JVM"));
+  }
+
+  private static int pathEnd(final String uri, final int start) {
+    int i = start;
+
+    while (i < uri.length() && "?#".indexOf(uri.charAt(i)) == -1) {
+      ++i;
+    }
+
+    return i;
   }
 
-  private static java.net.http.HttpHeaders headers(final HttpRequest request) {
-    return convertHeaders(request.headers());
+  private static int pathStart(final String uri) {
+    final int scheme = uri.startsWith("/") ? -1 : uri.indexOf("://");
+
+    if (scheme == -1) {
+      return 0;
+    }
+
+    int i = scheme + 3;
+
+    while (i < uri.length() && "/?#".indexOf(uri.charAt(i)) == -1) {
+      ++i;
+    }
+
+    return i;
   }
 
-  private static Stream<Plugin> plugins(final Config config) {
+  private static Stream<LoadedPlugin> plugins(final Config config) {
     return configValue(config::getString, PLUGINS)
         .map(Paths::get)
-        .map(directory -> loadPlugins(directory, layer -> ServiceLoader.load(layer, Plugin.class)))
-        .orElseGet(Stream::empty);
+        .map(directory -> loadPlugins(directory, config))
+        .orElseGet(Stream::empty)
+        .map(Bulkhead::isolated)
+        .map(PluginCache::cached)
+        .map(Timeouts::bounded);
   }
 
-  private static CompletionStage<HttpResponse> response(
-      final HttpResponse target,
+  /**
+   * Runs the response phase of a plugin and the response wrapper it returned.
+   *
+   * @param exchange the exchange.
+   * @param plugin the plugin or <code>null</code> when it has no response phase.
+   * @param responseWrapper the response wrapper or <code>null</code>.
+   * @param execution determines where the continuations of the chain run.
+   * @return The completion stage.
+   */
+  private static CompletionStage<Exchange> response(
+      final Exchange exchange,
       final Plugin plugin,
       final Function<java.net.http.HttpHeaders, CompletionStage<java.net.http.HttpHeaders>>
-          responseWrapper) {
-    return plugin
-        .response(convertHeaders(target.headers()))
-        .thenComposeAsync(
-            h -> responseWrapper != null ? responseWrapper.apply(h) : completedFuture(h))
-        .thenApply(h -> setHeaders(target, h));
+          responseWrapper,
+      final Execution execution) {
+    if (plugin == null && responseWrapper == null) {
+      return completedFuture(exchange);
+    }
+
+    final CompletionStage<java.net.http.HttpHeaders> headers =
+        plugin != null
+            ? plugin.response(exchange.responseHeaders.get())
+            : completedFuture(exchange.responseHeaders.get());
+
+    return (responseWrapper != null ? execution.compose(headers, responseWrapper) : headers)
+        .thenApply(h -> setResponseHeaders(exchange, h));
   }
 
   private static Optional<CompletionStage<Publisher<ByteBuf>>> returnImmediately(
-      final RequestResult result, final HttpResponse response) {
+      final RequestResult result, final Exchange exchange, final Plugin plugin) {
     return ofNullable(result.response)
-        .map(res -> setResponse(response, res.headers, res.statusCode))
+        .map(res -> setResponse(exchange, res.headers, res.statusCode, plugin))
         .map(h -> completedFuture(empty()));
   }
 
-  private static RequestHandler router(
-      final Stream<Pair<String, URI>> routes, final HttpClient client) {
-    final List<Pair<String, RequestHandler>> forwarders = routes(routes, client);
+  /**
+   * Puts the optional layers of a route in front of its forwarder. From the outside in they are
+   * the response cache, request coalescing, admission control and retries, so that cache hits and
+   * coalesced requests don't count against the concurrency limit of the route and the extra
+   * attempts of a request don't take extra slots.
+   *
+   * @param route the route.
+   * @param generation the upstream forwarders and the metrics of the layers.
+   * @return The handler of the route.
+   */
+  private static RequestHandler route(final Route route, final Generation generation) {
+    final Metrics metrics = generation.metrics;
+
+    return metrics.route(
+        route.pathPrefix,
+        generation.owns(
+            cached(
+                coalesced(
+                    admission(
+                        retried(
+                            forwarder(
+                                trace(route, () -> END_POINTS + ": " + route.endPoints),
+                                generation.upstream.forwarder(route.config)),
+                            route.config,
+                            route.pathPrefix,
+                            metrics),
+                        route.config,
+                        route.pathPrefix,
+                        metrics),
+                    route.config,
+                    route.pathPrefix,
+                    metrics),
+                route.config,
+                route.pathPrefix,
+                metrics)));
+  }
+
+  private static RequestHandler router(final Stream<Route> routes, final Generation generation) {
+    final PrefixTrie<RequestHandler> forwarders = prefixTrie(routes(routes, generation));
+    final RequestHandler notFound =
+        generation.chains.handler(
+            (request, requestBody, response) -> {
+              response.setStatus(NOT_FOUND);
+              return completedFuture(empty());
+            });
 
     return (request, requestBody, response) ->
-        tryToGetRethrow(() -> new URI(request.uri()))
-            .map(URI::getPath)
-            .flatMap(path -> getForwarder(forwarders, path))
-            .map(f -> f.apply(request, requestBody, response))
-            .orElseGet(
-                () -> {
-                  response.setStatus(NOT_FOUND);
-                  return completedFuture(empty());
-                });
-  }
-
-  private static List<Pair<String, RequestHandler>> routes(
-      final Stream<Pair<String, URI>> routes, final HttpClient client) {
-    return routes
-        .map(
-            pair ->
-                pair(
-                    trace(pair.first, () -> PATH_PREFIX + ": " + pair.first),
-                    Forwarder.forwarder(
-                        trace(pair.second, () -> END_POINT + ": " + pair.second), client)))
-        .toList();
+        getForwarder(forwarders, request.uri())
+            .orElse(notFound)
+            .apply(request, requestBody, response);
+  }
+
+  private static Stream<Pair<String, RequestHandler>> routes(
+      final Stream<Route> routes, final Generation generation) {
+    return routes.map(
+        route ->
+            pair(
+                trace(route.pathPrefix, () -> PATH_PREFIX + ": " + route.pathPrefix),
+                generation.owns(
+                    compressed(
+                        generation.chains.handler(route, route(route, generation)),
+                        route.config,
+                        route.pathPrefix,
+                        generation.metrics))));
   }
 
-  private static Stream<Pair<String, URI>> routes(final List<? extends Config> routes) {
+  private static Stream<Route> routes(final List<? extends Config> routes) {
     return routes.stream()
         .map(Config.class::cast)
         .flatMap(
             v ->
                 configValue(v::getString, PATH_PREFIX)
-                    .flatMap(
-                        p ->
-                            configValue(v::getString, END_POINT)
-                                .flatMap(e -> tryToGetRethrow(() -> new URI(e)))
-                                .map(u -> pair(p, u)))
+                    .map(p -> new Route(p, endPoints(v), v))
+                    .filter(r -> !r.endPoints.isEmpty())
                     .stream());
   }
 
-  private static HttpRequest setHeaders(
-      final HttpRequest request, final java.net.http.HttpHeaders headers) {
-    setHeaders(request.headers(), headers);
-
-    return request;
-  }
+  private static Exchange setRequestHeaders(
+      final Exchange exchange, final java.net.http.HttpHeaders headers) {
+    exchange.requestHeaders.set(headers);
 
-  private static void setHeaders(final HttpHeaders target, final java.net.http.HttpHeaders source) {
-    target.clear();
-    source.map().forEach(target::set);
+    return exchange;
   }
 
-  private static HttpResponse setHeaders(
-      final HttpResponse response, final java.net.http.HttpHeaders headers) {
-    setHeaders(response.headers(), headers);
+  private static Exchange setResponseHeaders(
+      final Exchange exchange, final java.net.http.HttpHeaders headers) {
+    exchange.responseHeaders.set(headers);
 
-    return response;
+    return exchange;
   }
 
-  private static HttpResponse setResponse(
-      final HttpResponse response, final java.net.http.HttpHeaders headers, final int statusCode) {
-    setHeaders(response, headers);
+  private static Exchange setResponse(
+      final Exchange exchange,
+      final java.net.http.HttpHeaders headers,
+      final int statusCode,
+      final Plugin plugin) {
+    exchange.responseHeaders.set(headers);
+    exchange.shortCircuit = plugin;
 
     if (statusCode != -1) {
-      response.setStatus(HttpResponseStatus.valueOf(statusCode));
+      exchange.response.setStatus(HttpResponseStatus.valueOf(statusCode));
     }
 
-    return response;
+    return exchange;
   }
 
-  private static Optional<RequestHandler> singleRoute(final String uri, final HttpClient client) {
+  private static Optional<RequestHandler> singleRoute(
+      final String uri, final Generation generation) {
     return tryToGetRethrow(() -> new URI(uri))
-        .map(u -> pair("/", u))
+        .map(u -> new Route("/", List.of(u), ConfigFactory.empty()))
         .map(Stream::of)
-        .map(r -> router(r, client));
+        .map(r -> router(r, generation));
+  }
+
+  private static Stage stage(final RequestHandler handler) {
+    return exchange -> {
+      exchange.requestHeaders.flush();
+
+      return exchange.upstream(
+          handler.apply(exchange.request, exchange.requestBody, exchange.response));
+    };
+  }
+
+  private static Stage stage(final Stage next, final Rules rules) {
+    return exchange -> {
+      rules.request(exchange.requestHeaders.netty());
+
+      return next
+          .apply(exchange)
+          .thenApply(
+              body -> {
+                rules.response(exchange.responseHeaders.netty());
+                return body;
+              });
+    };
+  }
+
+  /**
+   * Creates the stage for a plugin. The phases the plugin doesn't implement according to its
+   * capabilities are left out. When the plugin requires headers, the stage is skipped for requests
+   * that lack them.
+   *
+   * @param next the next stage in the chain.
+   * @param plugin the plugin.
+   * @param execution determines where the continuations of the chain run.
+   * @return The stage.
+   */
+  private static Stage stage(final Stage next, final Plugin plugin, final Execution execution) {
+    final Capabilities capabilities = capabilities(plugin);
+    final Execution exec = capabilities.synchronous ? execution.inline() : execution;
+    final Plugin responsePhase = capabilities.response ? plugin : null;
+    final Stage stage;
+
+    if (capabilities.request) {
+      stage = stage(next, plugin, responsePhase, exec);
+    } else if (responsePhase != null) {
+      stage =
+          exchange ->
+              exec.compose(
+                  next.apply(exchange),
+                  body -> withBody(response(exchange, responsePhase, null, exec), body));
+    } else {
+      stage = next;
+    }
+
+    return capabilities.requiredHeaders.isEmpty()
+        ? stage
+        : exchange ->
+            capabilities.applies(exchange.requestHeaders)
+                ? stage.apply(exchange)
+                : next.apply(exchange);
+  }
+
+  private static Stage stage(
+      final Stage next,
+      final Plugin plugin,
+      final Plugin responsePhase,
+      final Execution execution) {
+    return exchange ->
+        execution.compose(
+            plugin.request(exchange.requestHeaders.get()),
+            result ->
+                execution.compose(
+                    tryWith(
+                            () ->
+                                ofNullable(result.request)
+                                    .map(req -> next.apply(setRequestHeaders(exchange, req))))
+                        .or(() -> returnImmediately(result, exchange, plugin))
+                        .get()
+                        .orElseGet(() -> next.apply(exchange)),
+                    body ->
+                        result.response == null
+                            ? withBody(
+                                response(
+                                    exchange, responsePhase, result.responseWrapper, execution),
+                                body)
+                            : completedFuture(body)));
   }
 
   private static <T> T trace(final T v, final Supplier<String> message) {
@@ -250,15 +617,122 @@ public class Server {
     return v;
   }
 
+  /**
+   * Watches the configuration file in the <code>config.file</code> system property, the plugin
+   * folder and the extra paths in the <code>paths</code> field of the <code>reload</code> block.
+   *
+   * @param config the configuration.
+   * @param reload the <code>reload</code> block.
+   * @param onChange the function that reloads the server.
+   * @return The watcher.
+   */
+  private static Watcher watcher(
+      final Config config, final Config reload, final Runnable onChange) {
+    return new Watcher(
+        concat(
+                concat(
+                    Stream.ofNullable(getProperty(CONFIG_FILE)),
+                    configValue(config::getString, PLUGINS).stream()),
+                configValue(reload::getStringList, PATHS).stream().flatMap(List::stream))
+            .map(Paths::get)
+            .toList(),
+        configValue(reload::getDuration, DELAY).orElse(ofSeconds(2)),
+        onChange);
+  }
+
+  /**
+   * Continues with the body when the response phase succeeds. Otherwise the body is discarded,
+   * because nobody will consume it.
+   *
+   * @param response the stage of the response phase.
+   * @param body the response body.
+   * @return The stage with the body.
+   */
+  private static CompletionStage<Publisher<ByteBuf>> withBody(
+      final CompletionStage<Exchange> response, final Publisher<ByteBuf> body) {
+    return response
+        .whenComplete(
+            (r, e) -> {
+              if (e != null) {
+                discard(body);
+              }
+            })
+        .thenApply(r -> body);
+  }
+
+  private CompletionStage<Publisher<ByteBuf>> apply(
+      final HttpRequest request,
+      final Publisher<ByteBuf> requestBody,
+      final HttpResponse response) {
+    if (!served.get() && served.compareAndSet(false, true)) {
+      logFirstRequest();
+    }
+
+    Generation current = generation.get();
+
+    while (!current.enter()) {
+      current = generation.get();
+    }
+
+    return current.apply(request, requestBody, response);
+  }
+
   public void close() {
-    httpServer.close();
+    if (watcher != null) {
+      watcher.close();
+    }
+
+    if (nettyServer != null) {
+      nettyServer.close();
+    } else {
+      httpServer.close();
+    }
+
+    generation.get().close();
+    metrics.close();
+
+    if (transport != null) {
+      transport.close();
+    }
+
+    if (accessLog != null) {
+      accessLog.close();
+    }
+  }
+
+  /**
+   * Builds a new generation from the current configuration and swaps it in. New requests go to the
+   * new generation, while the running requests finish on the old one. The old generation is closed
+   * when it has drained. When the new configuration or a plugin can't be loaded, the server keeps
+   * running with the old generation.
+   */
+  public void reload() {
+    final Generation next;
+
+    try {
+      next = generation(config.get(), metrics, accessLog, transport);
+    } catch (Exception e) {
+      LOGGER.log(SEVERE, e, () -> "The reload failed, the previous configuration remains active");
+      return;
+    }
+
+    generation.getAndSet(next).retire(drainTimeout);
+    LOGGER.info("Reloaded the configuration and the plugins");
   }
 
   public CompletionStage<Boolean> run() {
-    return httpServer.run();
+    metrics.run();
+
+    return nettyServer != null ? nettyServer.run() : httpServer.run();
   }
 
   public void start() {
-    httpServer.start();
+    metrics.run();
+
+    if (nettyServer != null) {
+      nettyServer.start();
+    } else {
+      httpServer.start();
+    }
   }
 }
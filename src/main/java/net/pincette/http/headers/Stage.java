@@ -0,0 +1,15 @@
+package net.pincette.http.headers;
+
+import io.netty.buffer.ByteBuf;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Publisher;
+
+/**
+ * A link in the chain that handles an exchange.
+ *
+ * @author Werner Donné
+ */
+@FunctionalInterface
+interface Stage {
+  CompletionStage<Publisher<ByteBuf>> apply(Exchange exchange);
+}
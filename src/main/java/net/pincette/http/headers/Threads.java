@@ -0,0 +1,50 @@
+package net.pincette.http.headers;
+
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static net.pincette.util.Util.tryToGetSilent;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Werner Donné
+ */
+class Threads {
+  private Threads() {}
+
+  /**
+   * Creates a fixed thread pool with daemon threads.
+   *
+   * @param name the prefix for the thread names.
+   * @param threads the number of threads.
+   * @return The executor.
+   */
+  static ExecutorService fixedPool(final String name, final int threads) {
+    final AtomicInteger count = new AtomicInteger();
+
+    return newFixedThreadPool(
+        threads,
+        r -> {
+          final Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+
+          thread.setDaemon(true);
+
+          return thread;
+        });
+  }
+
+  /**
+   * Creates an executor that starts a virtual thread per task. It is looked up reflectively, so
+   * the code still runs on Java 17.
+   *
+   * @return The executor or nothing when virtual threads are not available.
+   */
+  static Optional<ExecutorService> virtualThreads() {
+    return tryToGetSilent(
+        () ->
+            (ExecutorService)
+                Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+  }
+}
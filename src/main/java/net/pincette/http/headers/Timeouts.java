@@ -0,0 +1,272 @@
+package net.pincette.http.headers;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_LENGTH;
+import static io.netty.handler.codec.http.HttpResponseStatus.GATEWAY_TIMEOUT;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.failedFuture;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.function.Function.identity;
+import static java.util.logging.Level.WARNING;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.Application.LOGGER;
+import static net.pincette.rs.Util.empty;
+
+import com.typesafe.config.Config;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import net.pincette.http.headers.plugin.Plugin;
+import net.pincette.http.headers.plugin.RequestResult;
+import net.pincette.http.headers.plugin.Response;
+import net.pincette.netty.http.RequestHandler;
+
+/**
+ * Bounds the time plugins and requests may take. When a plugin with a <code>timeout</code> setting
+ * doesn't complete a phase in time, or when it fails, its result is no longer waited for. It then
+ * fails open, which means its changes are skipped, or it fails closed with the status in its
+ * <code>failClosed</code> setting. The <code>deadline</code> configuration entry bounds the whole
+ * request with the status code 504.
+ *
+ * <p>When the deadline expires the request is cancelled. The layers in front of the forwarder pass
+ * the cancellation on to it, which closes the upstream connection. A response body that arrives
+ * anyway is discarded, which releases its buffers. The stages of plugins are not cancelled,
+ * because they may be shared, so the work behind them is not interrupted.
+ *
+ * @author Werner Donné
+ */
+class Timeouts {
+  private static final String DEADLINE = "deadline";
+  private static final String FAIL_CLOSED = "failClosed";
+  private static final String TIMEOUT = "timeout";
+
+  private Timeouts() {}
+
+  /**
+   * Wraps the plugin when its settings have a <code>timeout</code> entry.
+   *
+   * @param plugin the plugin.
+   * @return The wrapped plugin or the original one.
+   */
+  static LoadedPlugin bounded(final LoadedPlugin plugin) {
+    return configValue(plugin.settings::getDuration, TIMEOUT)
+        .map(
+            timeout ->
+                plugin.withPlugin(
+                    new BoundedPlugin(
+                        plugin.plugin,
+                        timeout,
+                        configValue(plugin.settings::getInt, FAIL_CLOSED).orElse(-1))))
+        .orElse(plugin);
+  }
+
+  private static Throwable cause(final Throwable e) {
+    return e instanceof CompletionException && e.getCause() != null ? cause(e.getCause()) : e;
+  }
+
+  /**
+   * Bounds the handler with the <code>deadline</code> configuration entry and turns plugins that
+   * fail closed in their response phase into their status code.
+   *
+   * @param handler the handler.
+   * @param config the configuration.
+   * @return The bounded handler.
+   */
+  static RequestHandler deadline(final RequestHandler handler, final Config config) {
+    final long deadline =
+        configValue(config::getDuration, DEADLINE).map(Duration::toNanos).orElse(-1L);
+
+    return deadline == -1
+        ? (request, requestBody, response) ->
+            handler
+                .apply(request, requestBody, response)
+                .exceptionally(e -> failClosed(e, response))
+        : (request, requestBody, response) ->
+            deadline(handler, request, requestBody, response, deadline);
+  }
+
+  /**
+   * The handler gets its own response, because it may still change it after the deadline has
+   * expired. It is copied to the real response when the handler completes in time.
+   */
+  private static CompletionStage<Publisher<ByteBuf>> deadline(
+      final RequestHandler handler,
+      final HttpRequest request,
+      final Publisher<ByteBuf> requestBody,
+      final HttpResponse response,
+      final long deadline) {
+    final HttpResponse bounded =
+        new DefaultHttpResponse(
+            response.protocolVersion(), response.status(), response.headers().copy());
+
+    return withTimeout(
+            handler.apply(request, requestBody, bounded),
+            deadline,
+            true,
+            e -> failedFuture(e),
+            BodyBuffer::discard)
+        .thenApply(
+            body -> {
+              response.setStatus(bounded.status());
+              response.headers().set(bounded.headers());
+
+              return body;
+            })
+        .exceptionally(e -> failClosed(e, response));
+  }
+
+  /**
+   * The response headers may already have been set by the upstream, so they are cleared. The body
+   * of the response has already been discarded.
+   */
+  private static Publisher<ByteBuf> failClosed(final Throwable e, final HttpResponse response) {
+    final Throwable cause = cause(e);
+
+    if (cause instanceof FailClosed failClosed) {
+      response.setStatus(HttpResponseStatus.valueOf(failClosed.statusCode));
+    } else if (cause instanceof TimeoutException) {
+      LOGGER.log(WARNING, "The request deadline has expired");
+      response.setStatus(GATEWAY_TIMEOUT);
+    } else {
+      throw new CompletionException(cause);
+    }
+
+    response.headers().clear();
+    response.headers().set(CONTENT_LENGTH, 0);
+
+    return empty();
+  }
+
+  /**
+   * Checks if a failure comes from a plugin that fails closed in its response phase.
+   *
+   * @param e the failure.
+   * @return Whether it should fail the request.
+   */
+  static boolean isFailClosed(final Throwable e) {
+    return cause(e) instanceof FailClosed;
+  }
+
+  /**
+   * When the stage doesn't complete in time, the fallback produces the result. The fallback is
+   * also used when the stage fails. When <code>cancel</code> is set, the stage is cancelled after
+   * the timeout. A result that arrives later anyway is given to <code>late</code>. The original
+   * stage is left alone when it completes in time, because it may be shared.
+   *
+   * @param stage the stage.
+   * @param timeout the timeout in nanoseconds. When it is -1 only failures are handled.
+   * @param cancel whether the stage should be cancelled after the timeout. Only stages that belong
+   *     to one request can be cancelled.
+   * @param fallback the function that receives the failure.
+   * @param late the function that receives a result that arrives after the timeout.
+   * @param <T> the result type.
+   * @return The bounded stage.
+   */
+  static <T> CompletionStage<T> withTimeout(
+      final CompletionStage<T> stage,
+      final long timeout,
+      final boolean cancel,
+      final Function<Throwable, CompletionStage<T>> fallback,
+      final Consumer<T> late) {
+    final CompletableFuture<T> future = stage.toCompletableFuture();
+    final CompletableFuture<T> copy = future.copy();
+
+    return (timeout != -1 ? copy.orTimeout(timeout, NANOSECONDS) : copy)
+        .handle(
+            (v, e) -> {
+              if (e == null) {
+                return completedFuture(v);
+              }
+
+              if (cancel && cause(e) instanceof TimeoutException) {
+                future.cancel(false);
+              }
+
+              future.thenAccept(late);
+
+              return fallback.apply(e);
+            })
+        .thenCompose(identity());
+  }
+
+  private static class BoundedPlugin implements Decorator {
+    private final int failClosed;
+    private final Plugin plugin;
+    private final long timeout;
+
+    private BoundedPlugin(final Plugin plugin, final Duration timeout, final int failClosed) {
+      this.plugin = plugin;
+      this.timeout = timeout.toNanos();
+      this.failClosed = failClosed;
+    }
+
+    public Plugin delegate() {
+      return plugin;
+    }
+
+    private boolean failed(final Throwable e, final String phase) {
+      final Throwable cause = cause(e);
+
+      LOGGER.log(
+          WARNING,
+          cause,
+          () ->
+              "The "
+                  + phase
+                  + " phase of plugin "
+                  + plugin
+                  + (cause instanceof TimeoutException ? " has timed out" : " has failed"));
+
+      return failClosed != -1;
+    }
+
+    public CompletionStage<RequestResult> request(final HttpHeaders headers) {
+      return withTimeout(
+          plugin.request(headers),
+          timeout,
+          false,
+          e ->
+              completedFuture(
+                  failed(e, "request")
+                      ? new RequestResult().withResponse(new Response().withStatusCode(failClosed))
+                      : new RequestResult()),
+          r -> {});
+    }
+
+    public CompletionStage<HttpHeaders> response(final HttpHeaders headers) {
+      return withTimeout(
+          plugin.response(headers),
+          timeout,
+          false,
+          e ->
+              failed(e, "response")
+                  ? failedFuture(new FailClosed(failClosed))
+                  : completedFuture(headers),
+          h -> {});
+    }
+
+    @Override
+    public String toString() {
+      return plugin.toString();
+    }
+  }
+
+  private static class FailClosed extends RuntimeException {
+    private final int statusCode;
+
+    private FailClosed(final int statusCode) {
+      super(null, null, false, false);
+      this.statusCode = statusCode;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package net.pincette.http.headers;
+
+import static java.util.logging.Level.WARNING;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.Application.LOGGER;
+
+import com.typesafe.config.Config;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The event loops and channel types of the server. They come from the <code>server</code>
+ * configuration block. The native epoll transport is used when it is available, unless the
+ * <code>transport</code> field is <code>nio</code>. The Netty upstream client runs on the same
+ * worker event loops.
+ *
+ * @author Werner Donné
+ */
+class Transport {
+  private static final String ACCEPTORS = "acceptors";
+  private static final String AUTO = "auto";
+  private static final String EPOLL = "epoll";
+  private static final String NIO = "nio";
+  private static final String TRANSPORT = "transport";
+  private static final String WORKERS = "workers";
+
+  final int acceptors;
+  final EventLoopGroup bosses;
+  final boolean epoll;
+  final EventLoopGroup workers;
+
+  private Transport(
+      final boolean epoll,
+      final int acceptors,
+      final EventLoopGroup bosses,
+      final EventLoopGroup workers) {
+    this.epoll = epoll;
+    this.acceptors = acceptors;
+    this.bosses = bosses;
+    this.workers = workers;
+  }
+
+  private static EventLoopGroup group(
+      final boolean epoll, final int threads, final ThreadFactory factory) {
+    return epoll
+        ? new EpollEventLoopGroup(threads, factory)
+        : new NioEventLoopGroup(threads, factory);
+  }
+
+  private static boolean useEpoll(final String transport) {
+    return switch (transport) {
+      case AUTO -> Epoll.isAvailable();
+      case EPOLL -> {
+        if (!Epoll.isAvailable()) {
+          LOGGER.log(
+              WARNING,
+              "The epoll transport is not available, using nio",
+              Epoll.unavailabilityCause());
+        }
+
+        yield Epoll.isAvailable();
+      }
+      case NIO -> false;
+      default -> {
+        LOGGER.log(WARNING, "Unknown transport {0}, using {1}", new Object[] {transport, AUTO});
+        yield Epoll.isAvailable();
+      }
+    };
+  }
+
+  /**
+   * Creates the event loops for a <code>server</code> block.
+   *
+   * @param config the <code>server</code> block.
+   * @return The transport.
+   */
+  static Transport transport(final Config config) {
+    final boolean epoll = useEpoll(configValue(config::getString, TRANSPORT).orElse(AUTO));
+    final int acceptors = configValue(config::getInt, ACCEPTORS).orElse(1);
+
+    LOGGER.info(() -> "Server transport: " + (epoll ? EPOLL : NIO));
+
+    return new Transport(
+        epoll,
+        acceptors,
+        group(epoll, acceptors, new DefaultThreadFactory("acceptor")),
+        group(
+            epoll,
+            configValue(config::getInt, WORKERS).orElse(0),
+            new DefaultThreadFactory("worker")));
+  }
+
+  /** Shuts down the event loops. This is done last, because the upstream client may use them. */
+  void close() {
+    bosses.shutdownGracefully();
+    workers.shutdownGracefully();
+  }
+
+  Class<? extends ServerChannel> serverChannel() {
+    return epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+  }
+
+  Class<? extends Channel> socketChannel() {
+    return epoll ? EpollSocketChannel.class : NioSocketChannel.class;
+  }
+}
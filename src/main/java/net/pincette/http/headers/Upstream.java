@@ -0,0 +1,172 @@
+package net.pincette.http.headers;
+
+import static java.lang.System.setProperty;
+import static java.net.http.HttpClient.newBuilder;
+import static net.pincette.config.Util.configValue;
+import static net.pincette.http.headers.BodyBuffer.cancellable;
+import static net.pincette.http.headers.Threads.fixedPool;
+import static net.pincette.util.Pair.pair;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Redirect;
+import java.net.http.HttpClient.Version;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+import net.pincette.netty.http.Forwarder;
+import net.pincette.netty.http.RequestHandler;
+import net.pincette.util.Pair;
+
+/**
+ * Creates the forwarders for the upstream servers. The global <code>upstream</code> block is the
+ * fallback for the <code>upstream</code> block of a route. Routes with the same effective settings
+ * share a client. With the <code>netty</code> transport the forwarders of all routes share one
+ * event loop group, which is the worker group of the server when it has its own transport. The
+ * routes with the same settings share the connection pools of an endpoint.
+ *
+ * @author Werner Donné
+ */
+class Upstream implements AutoCloseable {
+  private static final String CONNECTION_POOL_SIZE = "jdk.httpclient.connectionPoolSize";
+  private static final String CONNECT_TIMEOUT = "connectTimeout";
+  private static final String KEEP_ALIVE = "keepAlive";
+  private static final String KEEP_ALIVE_TIMEOUT = "jdk.httpclient.keepalive.timeout";
+  private static final String JDK = "jdk";
+  private static final String MAX_CONNECTIONS = "maxConnections";
+  private static final String NETTY = "netty";
+  private static final String REDIRECT = "redirect";
+  private static final String THREADS = "threads";
+  private static final String TRANSPORT = "transport";
+  private static final String UPSTREAM = "upstream";
+  private static final String VERSION = "version";
+
+  private final Map<Config, HttpClient> clients = new HashMap<>();
+  private final Config global;
+  private final Map<Pair<Config, URI>, NettyForwarder> nettyForwarders = new HashMap<>();
+  private final Transport transport;
+  private EventLoopGroup group;
+
+  /**
+   * Creates the upstream forwarders.
+   *
+   * @param config the configuration.
+   * @param transport the transport of the server, the event loops of which are shared with the
+   *     Netty client. When it is <code>null</code> the Netty client has its own event loops.
+   */
+  Upstream(final Config config, final Transport transport) {
+    this.transport = transport;
+    global = configValue(config::getConfig, UPSTREAM).orElseGet(ConfigFactory::empty);
+    setPoolProperties(global);
+  }
+
+  private static HttpClient create(final Config config) {
+    final HttpClient.Builder builder =
+        newBuilder()
+            .version(
+                configValue(config::getString, VERSION)
+                    .map(Version::valueOf)
+                    .orElse(Version.HTTP_1_1))
+            .followRedirects(
+                configValue(config::getString, REDIRECT)
+                    .map(Redirect::valueOf)
+                    .orElse(Redirect.NORMAL));
+
+    configValue(config::getDuration, CONNECT_TIMEOUT).ifPresent(builder::connectTimeout);
+    configValue(config::getInt, THREADS)
+        .map(threads -> fixedPool("upstream", threads))
+        .ifPresent(builder::executor);
+
+    return builder.build();
+  }
+
+  /**
+   * The JDK forwarder can't stop a request, so the body of a cancelled request is discarded when
+   * it arrives.
+   */
+  private static RequestHandler discarding(final RequestHandler forwarder) {
+    return (request, requestBody, response) ->
+        cancellable(forwarder.apply(request, requestBody, response), () -> {});
+  }
+
+  /**
+   * The connection pool of the JDK HTTP client can only be tuned with system properties, which are
+   * read when the first client is created. Therefore, these settings are only taken from the global
+   * block.
+   */
+  private static void setPoolProperties(final Config config) {
+    configValue(config::getDuration, KEEP_ALIVE)
+        .ifPresent(d -> setProperty(KEEP_ALIVE_TIMEOUT, String.valueOf(d.toSeconds())));
+    configValue(config::getInt, MAX_CONNECTIONS)
+        .ifPresent(n -> setProperty(CONNECTION_POOL_SIZE, String.valueOf(n)));
+  }
+
+  private HttpClient client(final Config config) {
+    return clients.computeIfAbsent(config, Upstream::create);
+  }
+
+  /**
+   * Stops the executors of the HTTP clients and closes the Netty connection pools. When the Netty
+   * client has its own event loops, they are shut down gracefully.
+   */
+  public void close() {
+    clients.values().stream()
+        .flatMap(c -> c.executor().stream())
+        .filter(ExecutorService.class::isInstance)
+        .map(ExecutorService.class::cast)
+        .forEach(ExecutorService::shutdown);
+    nettyForwarders.values().forEach(NettyForwarder::close);
+
+    if (transport == null && group != null) {
+      group.shutdownGracefully();
+    }
+  }
+
+  /**
+   * Returns the function that creates the forwarder for an endpoint of a route.
+   *
+   * @param route the configuration of the route.
+   * @return The forwarder function.
+   */
+  Function<URI, RequestHandler> forwarder(final Config route) {
+    final Config config =
+        configValue(route::getConfig, UPSTREAM).map(c -> c.withFallback(global)).orElse(global);
+
+    return NETTY.equals(configValue(config::getString, TRANSPORT).orElse(JDK))
+        ? uri -> nettyForwarder(uri, config)
+        : uri -> discarding(Forwarder.forwarder(uri, client(config)));
+  }
+
+  private EventLoopGroup group() {
+    if (transport != null) {
+      return transport.workers;
+    }
+
+    if (group == null) {
+      group =
+          new NioEventLoopGroup(
+              configValue(global::getInt, THREADS).orElse(0),
+              new DefaultThreadFactory(UPSTREAM, true));
+    }
+
+    return group;
+  }
+
+  private RequestHandler nettyForwarder(final URI uri, final Config config) {
+    return nettyForwarders.computeIfAbsent(
+        pair(config, uri),
+        k ->
+            new NettyForwarder(
+                uri,
+                group(),
+                transport != null ? transport.socketChannel() : NioSocketChannel.class,
+                config));
+  }
+}
@@ -0,0 +1,110 @@
+package net.pincette.http.headers;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+import static net.pincette.http.headers.Application.LOGGER;
+import static net.pincette.util.Util.tryToDoSilent;
+import static net.pincette.util.Util.tryToGetRethrow;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Watches files and folders and calls a function when they have changed. For a file its folder is
+ * watched, because configuration files are often replaced through a symbolic link. A folder is
+ * watched with its subfolders. The function is only called after the changes have been quiet for
+ * a while, so that a copy of several files causes only one call. It runs on the thread of the
+ * watcher.
+ *
+ * @author Werner Donné
+ */
+class Watcher implements Closeable {
+  private final Duration delay;
+  private final Runnable onChange;
+  private final List<Path> paths;
+  private final WatchService service;
+  private final Thread thread;
+
+  Watcher(final List<Path> paths, final Duration delay, final Runnable onChange) {
+    this.paths = paths;
+    this.delay = delay;
+    this.onChange = onChange;
+    service = tryToGetRethrow(() -> FileSystems.getDefault().newWatchService()).orElseThrow();
+    register();
+    thread = new Thread(this::watch, "watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void drain(final WatchKey key) {
+    key.pollEvents();
+    key.reset();
+  }
+
+  private static Stream<Path> folders(final Path path) {
+    if (!Files.isDirectory(path)) {
+      return Stream.ofNullable(path.toAbsolutePath().getParent());
+    }
+
+    try (Stream<Path> walk = Files.walk(path)) {
+      return walk.filter(Files::isDirectory).toList().stream();
+    } catch (IOException e) {
+      LOGGER.log(WARNING, e, () -> "Can't watch " + path);
+
+      return Stream.empty();
+    }
+  }
+
+  public void close() {
+    thread.interrupt();
+    tryToDoSilent(service::close);
+  }
+
+  /** Registers the folders again, because folders may have been added. */
+  private void register() {
+    paths.stream()
+        .flatMap(Watcher::folders)
+        .distinct()
+        .forEach(
+            folder ->
+                tryToDoSilent(
+                    () -> folder.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY)));
+  }
+
+  private void watch() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        drain(service.take());
+
+        for (WatchKey key = service.poll(delay.toMillis(), MILLISECONDS);
+            key != null;
+            key = service.poll(delay.toMillis(), MILLISECONDS)) {
+          drain(key);
+        }
+
+        register();
+        LOGGER.info(() -> "Changes detected in " + paths);
+        onChange.run();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ClosedWatchServiceException e) {
+      // The watcher was closed.
+    } catch (Exception e) {
+      LOGGER.log(SEVERE, e, () -> "The watcher of " + paths + " stopped");
+    }
+  }
+}
@@ -3,29 +3,88 @@ package net.pincette.http.headers;
 import static com.typesafe.config.ConfigValueFactory.fromAnyRef;
 import static com.typesafe.config.ConfigValueFactory.fromIterable;
 import static io.netty.buffer.Unpooled.copiedBuffer;
+import static io.netty.handler.codec.http.HttpHeaderNames.CONTENT_LENGTH;
+import static io.netty.handler.codec.http.HttpMethod.GET;
+import static io.netty.handler.codec.http.HttpResponseStatus.GATEWAY_TIMEOUT;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import static java.net.http.HttpClient.newBuilder;
 import static java.net.http.HttpHeaders.of;
 import static java.net.http.HttpRequest.BodyPublishers.noBody;
 import static java.net.http.HttpResponse.BodyHandlers.ofString;
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.time.Duration.ofSeconds;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.failedFuture;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toSet;
 import static net.pincette.netty.http.Util.simpleResponse;
+import static net.pincette.rs.Util.empty;
 import static net.pincette.util.Collections.list;
 import static net.pincette.util.Collections.map;
+import static net.pincette.util.Collections.merge;
+import static net.pincette.util.Collections.set;
 import static net.pincette.util.Pair.pair;
+import static net.pincette.util.StreamUtil.rangeExclusive;
+import static net.pincette.util.Util.tryToDoSilent;
 import static net.pincette.util.Util.tryToGetRethrow;
+import static net.pincette.util.Util.tryToGetSilent;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpClient.Redirect;
 import java.net.http.HttpClient.Version;
 import java.net.http.HttpHeaders;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow.Publisher;
+import java.util.concurrent.Flow.Subscription;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import net.pincette.http.headers.AccessLog.Recorder;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import net.pincette.http.headers.plugin.Plugin;
+import net.pincette.http.headers.plugin.RequestResult;
 import net.pincette.netty.http.HttpServer;
 import net.pincette.netty.http.RequestHandler;
 import net.pincette.rs.Source;
@@ -37,6 +96,8 @@ import org.junit.jupiter.api.Test;
 class TestHeaders {
   private static final BiPredicate<String, String> ALL = (k, v) -> true;
   private static final String CONTENT_TYPE_HEADER = "Content-Type";
+  private static final String KEY_STORE = "/upstream.p12";
+  private static final String PASSWORD = "password";
   private static final String PATH_HEADER = "X-Path";
   private static final String RESULT_HEADER = "X-Result";
   private static final String RESULT_HEADER_2 = "X-Result2";
@@ -45,6 +106,7 @@ class TestHeaders {
   private static final HttpClient client = getClient();
   private static final Server headers1 = new Server(9000, createConfigForward());
   private static final Server headers2 = new Server(9001, createConfigRoutes());
+  private static final Server headers3 = new Server(9004, createConfigServer());
   private static final HttpServer server1 = new HttpServer(9002, requestHandler("server1"));
   private static final HttpServer server2 = new HttpServer(9003, requestHandler("server2"));
 
@@ -74,6 +136,7 @@ class TestHeaders {
   static void after() {
     headers1.close();
     headers2.close();
+    headers3.close();
     server1.close();
     server2.close();
   }
@@ -84,6 +147,54 @@ class TestHeaders {
     server2.run();
     headers1.run();
     headers2.run();
+    headers3.run();
+  }
+
+  private static Publisher<ByteBuf> cancellable(final AtomicBoolean cancelled) {
+    return subscriber ->
+        subscriber.onSubscribe(
+            new Subscription() {
+              public void cancel() {
+                cancelled.set(true);
+              }
+
+              public void request(final long n) {
+                // Nothing to do.
+              }
+            });
+  }
+
+  private static RequestHandler coalesced(
+      final List<CompletableFuture<Publisher<ByteBuf>>> upstream,
+      final AtomicInteger calls,
+      final long maxBodySize) {
+    return Coalescer.coalesced(
+        (request, requestBody, response) -> {
+          response.headers().set(CONTENT_LENGTH, 4);
+
+          return upstream.get(calls.getAndIncrement());
+        },
+        ConfigFactory.empty().withValue("coalesce.maxBodySize", fromAnyRef(maxBodySize)),
+        "/",
+        Metrics.metrics(ConfigFactory.empty()));
+  }
+
+  private static Socket connect(final int port) {
+    for (int i = 0; i < 50; ++i) {
+      final Optional<Socket> socket = tryToGetSilent(() -> new Socket("localhost", port));
+
+      if (socket.isPresent()) {
+        return socket.get();
+      }
+
+      tryToGetSilent(
+          () -> {
+            Thread.sleep(100);
+            return true;
+          });
+    }
+
+    return tryToGetRethrow(() -> new Socket("localhost", port)).orElseThrow();
   }
 
   private static HttpResponse copyTestHeaders(
@@ -104,18 +215,170 @@ class TestHeaders {
   private static Config createConfigRoutes() {
     return ConfigFactory.empty()
         .withValue("plugins", fromAnyRef("test-plugin/target/plugin"))
+        .withValue("metrics.port", fromAnyRef(9005))
         .withValue(
             "routes",
             fromIterable(
                 list(
                     map(pair("pathPrefix", "/path1"), pair("endPoint", "http://localhost:9002")),
-                    map(pair("pathPrefix", "/path2"), pair("endPoint", "http://localhost:9003")))));
+                    map(pair("pathPrefix", "/path2"), pair("endPoint", "http://localhost:9003")),
+                    map(
+                        pair("pathPrefix", "/path1/sub"),
+                        pair("endPoint", "http://localhost:9003")),
+                    map(
+                        pair("pathPrefix", "/balanced"),
+                        pair("endPoints", list("http://localhost:9002", "http://localhost:9003"))),
+                    map(
+                        pair("pathPrefix", "/ejection"),
+                        pair("endPoints", list("http://localhost:9002", "http://localhost:9009")),
+                        pair(
+                            "ejection",
+                            map(pair("consecutiveFailures", 1), pair("minRequests", 1)))),
+                    map(
+                        pair("pathPrefix", "/noplugins"),
+                        pair("endPoint", "http://localhost:9002"),
+                        pair("plugins", list())),
+                    map(pair("pathPrefix", "/metered"), pair("endPoint", "http://localhost:9002")),
+                    map(
+                        pair("pathPrefix", "/netty"),
+                        pair("endPoint", "http://localhost:9002"),
+                        pair("upstream", map(pair("transport", "netty")))))));
+  }
+
+  private static Config createConfigServer() {
+    return createConfigForward()
+        .withValue("server.transport", fromAnyRef("nio"))
+        .withValue("server.workers", fromAnyRef(2))
+        .withValue("upstream.transport", fromAnyRef("netty"));
+  }
+  private static NettyServer echoServer(
+      final int port, final Transport transport, final CompletableFuture<Throwable> failure) {
+    return new NettyServer(
+        port,
+        (request, requestBody, response) ->
+            BodyBuffer.buffer(requestBody)
+                .whenComplete(
+                    (body, e) -> {
+                      if (e != null) {
+                        failure.complete(e);
+                      }
+                    })
+                .thenApply(
+                    body -> {
+                      response
+                          .headers()
+                          .set(CONTENT_LENGTH, body.readableBytes())
+                          .set(PATH_HEADER, request.uri());
+
+                      return Source.of(body);
+                    }),
+        transport,
+        ConfigFactory.empty());
+  }
+
+  private static CompletionStage<Publisher<ByteBuf>> get(
+      final RequestHandler handler, final HttpResponse response) {
+    return handler.apply(nettyRequest("/"), empty(), response);
   }
 
   private static HttpClient getClient() {
     return newBuilder().version(Version.HTTP_1_1).followRedirects(Redirect.NORMAL).build();
   }
 
+  private static String gunzip(final ByteBuf buffer) {
+    final byte[] bytes = new byte[buffer.readableBytes()];
+
+    buffer.readBytes(bytes).release();
+
+    return tryToGetRethrow(
+            () -> {
+              try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+                return new String(in.readAllBytes(), UTF_8);
+              }
+            })
+        .orElseThrow();
+  }
+
+  private static HttpHeaders headers(final String name, final String value) {
+    return of(map(pair(name, list(value))), ALL);
+  }
+
+  private static String line(final InputStream in) throws IOException {
+    final StringBuilder builder = new StringBuilder();
+
+    for (int c = in.read(); c != -1 && c != '\n'; c = in.read()) {
+      if (c != '\r') {
+        builder.append((char) c);
+      }
+    }
+
+    return builder.toString();
+  }
+
+  private static LoadedPlugin loaded(final String name, final Plugin plugin) {
+    return loaded(name, plugin, ConfigFactory.empty());
+  }
+
+  private static LoadedPlugin loaded(
+      final String name, final Plugin plugin, final Config settings) {
+    return Capabilities.declared(new LoadedPlugin("folder", name, plugin, settings));
+  }
+
+  private static HttpRequest nettyRequest(final String uri) {
+    return new DefaultHttpRequest(HTTP_1_1, GET, uri);
+  }
+
+  private static Plugin parallel(final List<LoadedPlugin> members) {
+    return ParallelPlugins.parallel(
+            members,
+            ConfigFactory.empty()
+                .withValue(
+                    "parallel",
+                    fromIterable(list(members.stream().map(p -> p.name).toList()))))
+        .get(0)
+        .plugin;
+  }
+
+  private static Plugin plugin(final Function<HttpHeaders, RequestResult> request) {
+    return plugin(h -> completedFuture(request.apply(h)), CompletableFuture::completedFuture);
+  }
+
+  private static Plugin plugin(
+      final Function<HttpHeaders, CompletionStage<RequestResult>> request,
+      final Function<HttpHeaders, CompletionStage<HttpHeaders>> response) {
+    return new Plugin() {
+      public CompletionStage<RequestResult> request(final HttpHeaders headers) {
+        return request.apply(headers);
+      }
+
+      public CompletionStage<HttpHeaders> response(final HttpHeaders headers) {
+        return response.apply(headers);
+      }
+    };
+  }
+
+  private static List<String> readResponse(final InputStream in) {
+    return tryToGetRethrow(
+            () -> {
+              final String status = line(in);
+              String path = null;
+              int length = 0;
+
+              for (String header = line(in); !header.isEmpty(); header = line(in)) {
+                final String[] parts = header.split(":", 2);
+
+                if (parts[0].equalsIgnoreCase(PATH_HEADER)) {
+                  path = parts[1].trim();
+                } else if (parts[0].equalsIgnoreCase(CONTENT_LENGTH.toString())) {
+                  length = Integer.parseInt(parts[1].trim());
+                }
+              }
+
+              return list(status, path, new String(in.readNBytes(length), US_ASCII));
+            })
+        .orElseThrow();
+  }
+
   private static java.net.http.HttpResponse<String> request(
       final HttpHeaders headers, final String path, final int port) {
     return tryToGetRethrow(
@@ -153,6 +416,39 @@ class TestHeaders {
     return request(headers, path, 9001);
   }
 
+  private static RequestResult requestResult(
+      final HttpHeaders headers, final String name, final String value) {
+    return new RequestResult().withRequest(withHeader(headers, name, value));
+  }
+
+  private static Retries retries(final RequestHandler handler, final Config retry) {
+    return (Retries)
+        Retries.retried(
+            handler,
+            ConfigFactory.empty().withValue("retry", retry.root()),
+            "/",
+            Metrics.metrics(ConfigFactory.empty()));
+  }
+
+  private static void serve(final Socket socket, final List<String> requestLines)
+      throws IOException {
+    try (socket) {
+      final BufferedReader reader =
+          new BufferedReader(new InputStreamReader(socket.getInputStream(), US_ASCII));
+      String line = reader.readLine();
+
+      requestLines.add(line);
+
+      while (line != null && !line.isEmpty()) {
+        line = reader.readLine();
+      }
+
+      socket
+          .getOutputStream()
+          .write("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes(US_ASCII));
+    }
+  }
+
   private static java.net.http.HttpRequest.Builder setHeaders(
       final java.net.http.HttpRequest.Builder builder, final HttpHeaders headers) {
     return headers.map().entrySet().stream()
@@ -160,6 +456,81 @@ class TestHeaders {
         .reduce(builder, (b, p) -> b.setHeader(p.first, p.second), (b1, b2) -> b1);
   }
 
+  private static String string(final Publisher<ByteBuf> body) {
+    final ByteBuf buffer = BodyBuffer.buffer(body).toCompletableFuture().join();
+    final String result = buffer.toString(UTF_8);
+
+    buffer.release();
+
+    return result;
+  }
+
+  private static ServerSocket tlsServer(final List<String> requestLines) {
+    final char[] password = PASSWORD.toCharArray();
+    final ServerSocket server =
+        tryToGetRethrow(
+                () -> {
+                  final KeyStore store = KeyStore.getInstance("PKCS12");
+                  final KeyManagerFactory keys =
+                      KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                  final SSLContext context = SSLContext.getInstance("TLS");
+
+                  try (InputStream in = TestHeaders.class.getResourceAsStream(KEY_STORE)) {
+                    store.load(in, password);
+                  }
+
+                  keys.init(store, password);
+                  context.init(keys.getKeyManagers(), null, null);
+
+                  return context.getServerSocketFactory().createServerSocket(0);
+                })
+            .orElseThrow();
+    final Thread thread =
+        new Thread(
+            () -> {
+              while (!server.isClosed()) {
+                tryToDoSilent(() -> serve(server.accept(), requestLines));
+              }
+            });
+
+    thread.setDaemon(true);
+    thread.start();
+
+    return server;
+  }
+
+  private static Plugin tracing(
+      final String name, final List<String> calls, final String setting, final List<String> value) {
+    return loaded(
+            name,
+            plugin(
+                h -> {
+                  calls.add(name + ".request");
+
+                  return completedFuture(new RequestResult());
+                },
+                h -> {
+                  calls.add(name + ".response");
+
+                  return completedFuture(h);
+                }),
+            ConfigFactory.empty().withValue(setting, fromIterable(value)))
+        .plugin;
+  }
+
+  private static HttpHeaders withHeader(
+      final HttpHeaders headers, final String name, final String value) {
+    return of(merge(headers.map(), map(pair(name, list(value)))), ALL);
+  }
+
+  private static void write(final OutputStream out, final String s) {
+    tryToDoSilent(
+        () -> {
+          out.write(s.getBytes(US_ASCII));
+          out.flush();
+        });
+  }
+
   @Test
   @DisplayName("test1")
   void test1() {
@@ -221,4 +592,1013 @@ class TestHeaders {
               assertEquals("test", response.body());
             });
   }
+
+  @Test
+  @DisplayName("test5")
+  void test5() {
+    list(
+            pair("/path1/sub", "server2"),
+            pair("/path1/sub/more?query=/path2", "server2"),
+            pair("/path1/other", "server1"))
+        .forEach(
+            p -> {
+              final java.net.http.HttpResponse<String> response =
+                  requestRoute(of(map(pair(TEST_HEADER, list("test1"))), ALL), p.first);
+
+              assertEquals(p.second, response.headers().map().get(SERVER_HEADER).get(0));
+              assertEquals("test", response.body());
+            });
+  }
+
+  @Test
+  @DisplayName("test6")
+  void test6() {
+    final Set<String> servers =
+        rangeExclusive(0, 4)
+            .map(i -> requestRoute(of(map(pair(TEST_HEADER, list("test1"))), ALL), "/balanced"))
+            .map(r -> r.headers().map().get(SERVER_HEADER).get(0))
+            .collect(toSet());
+
+    assertEquals(set("server1", "server2"), servers);
+  }
+
+  @Test
+  @DisplayName("test7")
+  void test7() {
+    final List<java.net.http.HttpResponse<String>> responses =
+        rangeExclusive(0, 6)
+            .map(i -> requestRoute(of(map(pair(TEST_HEADER, list("test1"))), ALL), "/ejection"))
+            .toList();
+
+    responses
+        .subList(2, 6)
+        .forEach(
+            r -> {
+              assertEquals(200, r.statusCode());
+              assertEquals("server1", r.headers().map().get(SERVER_HEADER).get(0));
+            });
+  }
+
+  @Test
+  @DisplayName("test8")
+  void test8() {
+    final java.net.http.HttpResponse<String> response =
+        requestRoute(of(map(pair(TEST_HEADER, list("test1"))), ALL), "/noplugins");
+
+    assertEquals(200, response.statusCode());
+    assertEquals(null, response.headers().map().get("test1"));
+    assertEquals(null, response.headers().map().get(RESULT_HEADER_2));
+    assertEquals("test", response.body());
+  }
+
+  @Test
+  @DisplayName("test9")
+  void test9() {
+    rangeExclusive(0, 3)
+        .forEach(
+            i -> {
+              final java.net.http.HttpResponse<String> response =
+                  requestRoute(of(map(pair(TEST_HEADER, list("test1"))), ALL), "/netty");
+
+              assertEquals(200, response.statusCode());
+              assertEquals("value1", response.headers().map().get("test1").get(0));
+              assertEquals("/netty", response.headers().map().get(PATH_HEADER).get(0));
+              assertEquals("server1", response.headers().map().get(SERVER_HEADER).get(0));
+              assertEquals("test", response.body());
+            });
+  }
+
+  @Test
+  @DisplayName("test10")
+  void test10() {
+    list("/", "/path", "/path")
+        .forEach(
+            p -> {
+              final java.net.http.HttpResponse<String> response =
+                  request(of(map(pair(TEST_HEADER, list("test1"))), ALL), p, 9004);
+
+              assertEquals(200, response.statusCode());
+              assertEquals("value1", response.headers().map().get("test1").get(0));
+              assertEquals(p, response.headers().map().get(PATH_HEADER).get(0));
+              assertEquals("value", response.headers().map().get(RESULT_HEADER_2).get(0));
+              assertEquals("test", response.body());
+            });
+  }
+
+  @Test
+  @DisplayName("test11")
+  void test11() {
+    headers1.reload();
+
+    final java.net.http.HttpResponse<String> response =
+        requestForward(of(map(pair(TEST_HEADER, list("test1"))), ALL), "/");
+
+    assertEquals("value1", response.headers().map().get("test1").get(0));
+    assertEquals("value", response.headers().map().get(RESULT_HEADER_2).get(0));
+    assertEquals("test", response.body());
+  }
+
+  @Test
+  @DisplayName("test12")
+  void test12() {
+    final AtomicInteger calls = new AtomicInteger();
+    final LoadedPlugin plugin =
+        PluginCache.cached(
+            new LoadedPlugin(
+                "folder",
+                "counting",
+                plugin(
+                    h -> {
+                      calls.incrementAndGet();
+
+                      return new RequestResult()
+                          .withRequest(
+                              of(merge(h.map(), map(pair("test12", list("value12")))), ALL));
+                    }),
+                ConfigFactory.empty().withValue("cache.headers", fromIterable(list(TEST_HEADER)))));
+    final PluginCache cache = (PluginCache) plugin.plugin;
+
+    rangeExclusive(0, 3)
+        .forEach(
+            i -> {
+              final RequestResult result =
+                  cache.request(headers(TEST_HEADER, "test12")).toCompletableFuture().join();
+
+              assertEquals("value12", result.request.firstValue("test12").orElse(null));
+              assertEquals("test12", result.request.firstValue(TEST_HEADER).orElse(null));
+            });
+
+    assertEquals(1, calls.get());
+    assertEquals(2, cache.hits());
+    assertEquals(1, cache.misses());
+    cache.request(headers(TEST_HEADER, "other")).toCompletableFuture().join();
+    assertEquals(2, calls.get());
+    assertEquals(2, cache.misses());
+  }
+
+  @Test
+  @DisplayName("test13")
+  void test13() {
+    final Plugin group =
+        parallel(
+            list(
+                loaded("a", plugin(h -> requestResult(h, "X-Conflict", "a"))),
+                loaded("b", plugin(h -> requestResult(h, "X-Conflict", "b"))),
+                loaded("c", plugin(h -> requestResult(h, "X-Remove", "c"))),
+                loaded(
+                    "d",
+                    plugin(
+                        h ->
+                            new RequestResult()
+                                .withRequest(
+                                    of(h.map(), (k, v) -> !k.equalsIgnoreCase("X-Remove"))))),
+                loaded(
+                    "e",
+                    plugin(h -> requestResult(h, "X-Skipped", "e")),
+                    ConfigFactory.empty()
+                        .withValue("requiredHeaders", fromIterable(list("X-Missing"))))));
+    final RequestResult result =
+        group.request(headers("X-Remove", "value")).toCompletableFuture().join();
+
+    assertEquals("b", result.request.firstValue("X-Conflict").orElse(null));
+    assertTrue(result.request.firstValue("X-Remove").isEmpty());
+    assertTrue(result.request.firstValue("X-Skipped").isEmpty());
+    assertTrue(Capabilities.capabilities(group).request);
+    assertFalse(Capabilities.capabilities(group).response);
+  }
+
+  @Test
+  @DisplayName("test14")
+  void test14() {
+    final Plugin group =
+        parallel(
+            list(
+                loaded(
+                    "a",
+                    plugin(
+                        h -> failedFuture(new IllegalStateException("a")),
+                        h -> failedFuture(new IllegalStateException("a")))),
+                loaded(
+                    "b",
+                    plugin(
+                        h -> completedFuture(requestResult(h, "X-Request", "b")),
+                        h -> completedFuture(withHeader(h, "X-Response", "b")))),
+                loaded(
+                    "c",
+                    plugin(
+                        h -> completedFuture(new RequestResult()),
+                        h -> completedFuture(withHeader(h, "X-Skipped", "c"))),
+                    ConfigFactory.empty().withValue("phases", fromIterable(list("request"))))));
+    final RequestResult result =
+        group.request(headers(TEST_HEADER, "test14")).toCompletableFuture().join();
+    final HttpHeaders response =
+        result.responseWrapper.apply(headers("X-Upstream", "value")).toCompletableFuture().join();
+
+    assertEquals("b", result.request.firstValue("X-Request").orElse(null));
+    assertEquals("b", response.firstValue("X-Response").orElse(null));
+    assertEquals("value", response.firstValue("X-Upstream").orElse(null));
+    assertTrue(response.firstValue("X-Skipped").isEmpty());
+  }
+
+  @Test
+  @DisplayName("test15")
+  void test15() {
+    rangeExclusive(0, 3)
+        .forEach(
+            i ->
+                assertEquals(
+                    200, requestRoute(headers(TEST_HEADER, "test1"), "/metered").statusCode()));
+
+    final java.net.http.HttpResponse<String> response =
+        request(headers(TEST_HEADER, "test15"), "/metrics", 9005);
+    final String body = response.body();
+
+    assertEquals(200, response.statusCode());
+    assertTrue(body.contains("http_headers_route_seconds_count{route=\"/metered\"} 3\n"));
+    assertTrue(body.contains("http_headers_route_in_flight{route=\"/metered\"} 0\n"));
+    assertTrue(body.contains("# TYPE http_headers_plugin_seconds histogram\n"));
+    assertTrue(body.contains("# TYPE http_headers_requests_seconds histogram\n"));
+  }
+
+  @Test
+  @DisplayName("test16")
+  void test16() {
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    final HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+    final CompletableFuture<Publisher<ByteBuf>> upstream = new CompletableFuture<>();
+    final RequestHandler handler =
+        Timeouts.deadline(
+            (request, requestBody, resp) -> {
+              resp.headers().set("X-Upstream", "value");
+
+              return BodyBuffer.cancellable(upstream, () -> {});
+            },
+            ConfigFactory.empty().withValue("deadline", fromAnyRef("50ms")));
+
+    get(handler, response).toCompletableFuture().join();
+    upstream.complete(cancellable(cancelled));
+
+    assertEquals(GATEWAY_TIMEOUT, response.status());
+    assertEquals("0", response.headers().get(CONTENT_LENGTH));
+    assertEquals(null, response.headers().get("X-Upstream"));
+    assertTrue(cancelled.get());
+  }
+
+  @Test
+  @DisplayName("test17")
+  void test17() {
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    final HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+    final Plugin plugin =
+        Timeouts.bounded(
+                new LoadedPlugin(
+                    "folder",
+                    "never",
+                    plugin(
+                        h -> completedFuture(new RequestResult()), h -> new CompletableFuture<>()),
+                    ConfigFactory.empty()
+                        .withValue("timeout", fromAnyRef("50ms"))
+                        .withValue("failClosed", fromAnyRef(503))))
+            .plugin;
+    final RequestHandler handler =
+        Timeouts.deadline(
+            Server.handler(
+                list(plugin),
+                (request, requestBody, resp) -> {
+                  resp.headers().set("X-Upstream", "value");
+
+                  return completedFuture(cancellable(cancelled));
+                },
+                Execution.execution(ConfigFactory.empty())),
+            ConfigFactory.empty());
+
+    get(handler, response).toCompletableFuture().join();
+
+    assertEquals(SERVICE_UNAVAILABLE, response.status());
+    assertEquals("0", response.headers().get(CONTENT_LENGTH));
+    assertEquals(null, response.headers().get("X-Upstream"));
+    assertTrue(cancelled.get());
+  }
+
+  @Test
+  @DisplayName("test18")
+  void test18() {
+    final CompletableFuture<Publisher<ByteBuf>> first = new CompletableFuture<>();
+    final List<CompletableFuture<Publisher<ByteBuf>>> upstream =
+        list(first, completedFuture(empty()));
+    final AtomicInteger calls = new AtomicInteger();
+    final RequestHandler handler =
+        Admission.admission(
+            (request, requestBody, resp) -> upstream.get(calls.getAndIncrement()),
+            ConfigFactory.empty().withValue("admission.maxConcurrent", fromAnyRef(1)),
+            "/",
+            Metrics.metrics(ConfigFactory.empty()));
+    final HttpResponse accepted = new DefaultHttpResponse(HTTP_1_1, OK);
+    final HttpResponse shed = new DefaultHttpResponse(HTTP_1_1, OK);
+
+    get(handler, new DefaultHttpResponse(HTTP_1_1, OK));
+    get(handler, shed).toCompletableFuture().join();
+    first.complete(empty());
+    get(handler, accepted).toCompletableFuture().join();
+
+    assertEquals(SERVICE_UNAVAILABLE, shed.status());
+    assertEquals("1", shed.headers().get("Retry-After"));
+    assertEquals(OK, accepted.status());
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  @DisplayName("test19")
+  void test19() {
+    final ByteBuf body = copiedBuffer("test", UTF_8);
+    final AtomicInteger calls = new AtomicInteger();
+    final CompletableFuture<Publisher<ByteBuf>> upstream = new CompletableFuture<>();
+    final RequestHandler handler = coalesced(list(upstream), calls, 1024);
+    final List<CompletionStage<Publisher<ByteBuf>>> responses =
+        rangeExclusive(0, 3).map(i -> get(handler, new DefaultHttpResponse(HTTP_1_1, OK))).toList();
+
+    upstream.complete(Source.of(body));
+    responses.forEach(r -> assertEquals("test", string(r.toCompletableFuture().join())));
+    assertEquals(1, calls.get());
+    assertEquals(2, ((Coalescer) handler).coalesced());
+    assertEquals(0, body.refCnt());
+  }
+
+  @Test
+  @DisplayName("test20")
+  void test20() {
+    final AtomicInteger calls = new AtomicInteger();
+    final CompletableFuture<Publisher<ByteBuf>> first = new CompletableFuture<>();
+    final RequestHandler handler =
+        coalesced(
+            list(first, completedFuture(Source.of(copiedBuffer("test", UTF_8)))), calls, 2);
+    final CompletionStage<Publisher<ByteBuf>> leader =
+        get(handler, new DefaultHttpResponse(HTTP_1_1, OK));
+    final CompletionStage<Publisher<ByteBuf>> waiter =
+        get(handler, new DefaultHttpResponse(HTTP_1_1, OK));
+
+    first.complete(Source.of(copiedBuffer("test", UTF_8)));
+    assertEquals("test", string(leader.toCompletableFuture().join()));
+    assertEquals("test", string(waiter.toCompletableFuture().join()));
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  @DisplayName("test21")
+  void test21() {
+    final AtomicInteger calls = new AtomicInteger();
+    final ResponseCache cache =
+        (ResponseCache)
+            ResponseCache.cached(
+                (request, requestBody, response) -> {
+                  calls.incrementAndGet();
+
+                  if ("\"v1\"".equals(request.headers().get("If-None-Match"))) {
+                    response.setStatus(NOT_MODIFIED);
+
+                    return completedFuture(empty());
+                  }
+
+                  response
+                      .headers()
+                      .set(CONTENT_LENGTH, 4)
+                      .set("ETag", "\"v1\"")
+                      .set(
+                          "Cache-Control",
+                          request.uri().equals("/fresh") ? "max-age=60" : "max-age=0");
+
+                  return completedFuture(Source.of(copiedBuffer("test", UTF_8)));
+                },
+                ConfigFactory.empty().withValue("responseCache.maxMemory", fromAnyRef(1024)),
+                "/",
+                Metrics.metrics(ConfigFactory.empty()));
+    final HttpRequest conditional = nettyRequest("/fresh");
+    final HttpResponse notModified = new DefaultHttpResponse(HTTP_1_1, OK);
+    final HttpResponse revalidated = new DefaultHttpResponse(HTTP_1_1, OK);
+
+    conditional.headers().set("If-None-Match", "\"v1\"");
+    list("/fresh", "/fresh", "/stale")
+        .forEach(
+            uri ->
+                assertEquals(
+                    "test",
+                    string(
+                        cache
+                            .apply(
+                                nettyRequest(uri), empty(), new DefaultHttpResponse(HTTP_1_1, OK))
+                            .toCompletableFuture()
+                            .join())));
+    assertEquals(
+        "",
+        string(cache.apply(conditional, empty(), notModified).toCompletableFuture().join()));
+    assertEquals(
+        "test",
+        string(
+            cache
+                .apply(nettyRequest("/stale"), empty(), revalidated)
+                .toCompletableFuture()
+                .join()));
+    assertEquals(NOT_MODIFIED, notModified.status());
+    assertEquals(OK, revalidated.status());
+    assertEquals("\"v1\"", revalidated.headers().get("ETag"));
+    assertEquals(3, calls.get());
+    assertEquals(2, cache.hits());
+    assertEquals(2, cache.misses());
+    assertEquals(1, cache.revalidations());
+    cache.close();
+  }
+
+  @Test
+  @DisplayName("test22")
+  void test22() {
+    final List<String> forwarded = new ArrayList<>();
+    final Chains chains =
+        new Chains(
+            list(
+                loaded("a", plugin(h -> requestResult(h, "X-A", "a"))),
+                loaded("b", plugin(h -> requestResult(h, "X-B", "b"))),
+                new LoadedPlugin(
+                    "other",
+                    "c",
+                    plugin(h -> requestResult(h, "X-C", "c")),
+                    ConfigFactory.empty())),
+            ConfigFactory.empty(),
+            null);
+    final RequestHandler handler =
+        chains.handler(
+            new Route(
+                "/",
+                list(),
+                ConfigFactory.empty().withValue("plugins", fromIterable(list("folder")))),
+            (request, requestBody, response) -> {
+              forwarded.add(request.headers().get("X-A"));
+              forwarded.add(request.headers().get("X-B"));
+              forwarded.add(request.headers().get("X-C"));
+
+              return completedFuture(empty());
+            });
+
+    get(handler, new DefaultHttpResponse(HTTP_1_1, OK)).toCompletableFuture().join();
+    chains.close();
+    assertEquals(list("a", "b", null), forwarded);
+  }
+
+  @Test
+  @DisplayName("test23")
+  void test23() {
+    final List<String> calls = new ArrayList<>();
+    final RequestHandler handler =
+        Server.handler(
+            list(
+                tracing("a", calls, "phases", list("request")),
+                tracing("b", calls, "requiredHeaders", list("X-Required")),
+                tracing("c", calls, "phases", list("response"))),
+            (request, requestBody, response) -> completedFuture(empty()),
+            Execution.execution(ConfigFactory.empty()));
+    final HttpRequest request = nettyRequest("/");
+
+    get(handler, new DefaultHttpResponse(HTTP_1_1, OK)).toCompletableFuture().join();
+    assertEquals(list("a.request", "c.response"), calls);
+    calls.clear();
+    request.headers().set("X-Required", "value");
+    handler
+        .apply(request, empty(), new DefaultHttpResponse(HTTP_1_1, OK))
+        .toCompletableFuture()
+        .join();
+    assertEquals(list("a.request", "b.request", "c.response", "b.response"), calls);
+  }
+
+  @Test
+  @DisplayName("test24")
+  void test24() {
+    final CompletableFuture<RequestResult> pending = new CompletableFuture<>();
+    final Bulkhead bulkhead =
+        (Bulkhead)
+            Bulkhead.isolated(
+                    loaded(
+                        "pending",
+                        plugin(h -> pending, CompletableFuture::completedFuture),
+                        ConfigFactory.empty()
+                            .withValue("bulkhead.threads", fromAnyRef(1))
+                            .withValue("bulkhead.queue", fromAnyRef(0))))
+                .plugin;
+    final HttpHeaders headers = headers("name", "value");
+    final CompletableFuture<RequestResult> first = bulkhead.request(headers).toCompletableFuture();
+
+    assertEquals(1, bulkhead.inUse());
+    assertTrue(bulkhead.request(headers).toCompletableFuture().isCompletedExceptionally());
+    assertEquals(1, bulkhead.rejected());
+    pending.complete(new RequestResult());
+    first.join();
+    assertEquals(0, bulkhead.inUse());
+    bulkhead.request(headers).toCompletableFuture().join();
+    assertEquals(0, bulkhead.inUse());
+    bulkhead.close();
+    assertTrue(bulkhead.request(headers).toCompletableFuture().isCompletedExceptionally());
+    assertEquals(0, bulkhead.inUse());
+    assertEquals(2, bulkhead.rejected());
+  }
+
+  @Test
+  @DisplayName("test25")
+  void test25() {
+    final List<String> forwarded = new ArrayList<>();
+    final HttpRequest request = nettyRequest("/");
+    final HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+    final RequestHandler handler =
+        Server.handler(
+            list(plugin(h -> requestResult(h, "X-Plugin", h.firstValue("X-Added").orElse("")))),
+            Rules.rules(
+                    ConfigFactory.parseString(
+                        "rules.request = [{add = X-Added, value = added}, {remove = X-Removed}]"))
+                .and(
+                    Rules.rules(
+                        ConfigFactory.parseString(
+                            "rules.response = [{rename = X-Upstream, to = X-Renamed}]"))),
+            (req, requestBody, resp) -> {
+              forwarded.add(req.headers().get("X-Added"));
+              forwarded.add(req.headers().get("X-Removed"));
+              forwarded.add(req.headers().get("X-Plugin"));
+              resp.headers().set("X-Upstream", "upstream");
+
+              return completedFuture(empty());
+            },
+            Execution.execution(ConfigFactory.empty()));
+
+    request.headers().set("X-Removed", "value");
+    handler.apply(request, empty(), response).toCompletableFuture().join();
+    assertEquals(list("added", null, "added"), forwarded);
+    assertEquals(null, response.headers().get("X-Upstream"));
+    assertEquals("upstream", response.headers().get("X-Renamed"));
+  }
+
+  @Test
+  @DisplayName("test26")
+  void test26() {
+    final List<String> requestLines = new CopyOnWriteArrayList<>();
+    final ServerSocket server = tlsServer(requestLines);
+    final EventLoopGroup group = new NioEventLoopGroup(1);
+    final HttpResponse response = new DefaultHttpResponse(HTTP_1_1, SERVICE_UNAVAILABLE);
+
+    System.setProperty(
+        "javax.net.ssl.trustStore",
+        tryToGetRethrow(() -> Paths.get(TestHeaders.class.getResource(KEY_STORE).toURI()))
+            .orElseThrow()
+            .toString());
+    System.setProperty("javax.net.ssl.trustStorePassword", PASSWORD);
+    System.setProperty("javax.net.ssl.trustStoreType", "PKCS12");
+
+    final NettyForwarder matching =
+        new NettyForwarder(
+            URI.create("https://127.0.0.1:" + server.getLocalPort() + "/base/"),
+            group,
+            NioSocketChannel.class,
+            ConfigFactory.empty());
+    final NettyForwarder wrongHost =
+        new NettyForwarder(
+            URI.create("https://localhost:" + server.getLocalPort()),
+            group,
+            NioSocketChannel.class,
+            ConfigFactory.empty());
+
+    try {
+      string(
+          matching
+              .apply(nettyRequest("/path?q=1"), empty(), response)
+              .toCompletableFuture()
+              .join());
+      assertEquals(OK, response.status());
+      assertEquals(list("GET /base/path?q=1 HTTP/1.1"), requestLines);
+      assertTrue(
+          wrongHost
+              .apply(nettyRequest("/"), empty(), new DefaultHttpResponse(HTTP_1_1, OK))
+              .toCompletableFuture()
+              .handle((r, e) -> e != null)
+              .join());
+      assertEquals(1, requestLines.size());
+    } finally {
+      matching.close();
+      wrongHost.close();
+      group.shutdownGracefully();
+      tryToDoSilent(server::close);
+      System.clearProperty("javax.net.ssl.trustStore");
+      System.clearProperty("javax.net.ssl.trustStorePassword");
+      System.clearProperty("javax.net.ssl.trustStoreType");
+    }
+  }
+
+  @Test
+  @DisplayName("test27")
+  void test27() {
+    final Transport transport =
+        Transport.transport(ConfigFactory.empty().withValue("transport", fromAnyRef("nio")));
+    final NettyServer server = echoServer(9006, transport, new CompletableFuture<>());
+
+    server.run();
+
+    try (Socket socket = connect(9006)) {
+      final InputStream in = new BufferedInputStream(socket.getInputStream());
+      final OutputStream out = socket.getOutputStream();
+
+      write(
+          out,
+          "POST /a HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello"
+              + "GET /b HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      assertEquals(list("HTTP/1.1 200 OK", "/a", "hello"), readResponse(in));
+      assertEquals(list("HTTP/1.1 200 OK", "/b", ""), readResponse(in));
+      write(
+          out,
+          "POST /c HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+              + "5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n");
+      assertEquals(list("HTTP/1.1 200 OK", "/c", "hello world"), readResponse(in));
+      write(
+          out,
+          "POST /d HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n"
+              + "Expect: 100-continue\r\n\r\n");
+      assertEquals("HTTP/1.1 100 Continue", readResponse(in).get(0));
+      write(out, "hello");
+      assertEquals(list("HTTP/1.1 200 OK", "/d", "hello"), readResponse(in));
+      write(out, "GET /e HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+      assertEquals(list("HTTP/1.1 200 OK", "/e", ""), readResponse(in));
+      assertEquals(-1, in.read());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      server.close();
+      transport.close();
+    }
+  }
+
+  @Test
+  @DisplayName("test28")
+  void test28() {
+    final CompletableFuture<Throwable> failure = new CompletableFuture<>();
+    final Transport transport =
+        Transport.transport(ConfigFactory.empty().withValue("transport", fromAnyRef("nio")));
+    final NettyServer server = echoServer(9007, transport, failure);
+
+    server.run();
+
+    try {
+      try (Socket socket = connect(9007)) {
+        write(
+            socket.getOutputStream(),
+            "POST /a HTTP/1.1\r\nHost: localhost\r\nContent-Length: 10\r\n\r\nhello");
+      }
+
+      assertTrue(failure.orTimeout(5, SECONDS).join() != null);
+
+      try (Socket socket = connect(9007)) {
+        write(socket.getOutputStream(), "GET /b HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertEquals(
+            list("HTTP/1.1 200 OK", "/b", ""),
+            readResponse(new BufferedInputStream(socket.getInputStream())));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      server.close();
+      transport.close();
+    }
+  }
+
+  @Test
+  @DisplayName("test29")
+  void test29() {
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    final List<Publisher<ByteBuf>> upstream =
+        list(Source.of(copiedBuffer("test", UTF_8)), cancellable(cancelled));
+    final AtomicInteger calls = new AtomicInteger();
+    final Generation generation =
+        new Generation(Metrics.metrics(ConfigFactory.empty()), null, null);
+
+    generation.handler(
+        (request, requestBody, response) -> completedFuture(upstream.get(calls.getAndIncrement())));
+    assertTrue(generation.enter());
+    assertTrue(generation.enter());
+
+    final Publisher<ByteBuf> first =
+        generation
+            .apply(nettyRequest("/"), empty(), new DefaultHttpResponse(HTTP_1_1, OK))
+            .toCompletableFuture()
+            .join();
+    final Publisher<ByteBuf> second =
+        generation
+            .apply(nettyRequest("/"), empty(), new DefaultHttpResponse(HTTP_1_1, OK))
+            .toCompletableFuture()
+            .join();
+    final CompletableFuture<Void> retired = generation.retire(ofSeconds(5)).toCompletableFuture();
+
+    assertFalse(generation.enter());
+    assertFalse(retired.isDone());
+    assertEquals("test", string(first));
+    assertFalse(retired.isDone());
+    BodyBuffer.discard(second);
+    retired.join();
+    assertTrue(cancelled.get());
+  }
+
+  @Test
+  @DisplayName("test30")
+  void test30() {
+    final Path file = tryToGetRethrow(() -> Files.createTempFile("access", ".log")).orElseThrow();
+    final AccessLog log =
+        AccessLog.accessLog(
+            ConfigFactory.empty().withValue("accessLog.file", fromAnyRef(file.toString())));
+    final Recorder recorder = log.recorder("/route");
+
+    recorder
+        .recorded(
+            new Exchange(
+                nettyRequest("/path?q=1"),
+                empty(),
+                new DefaultHttpResponse(HTTP_1_1, NOT_MODIFIED)),
+            recorder.start(),
+            completedFuture(null))
+        .toCompletableFuture()
+        .join();
+    recorder
+        .recorded(
+            new Exchange(nettyRequest("/failed"), empty(), new DefaultHttpResponse(HTTP_1_1, OK)),
+            recorder.start(),
+            failedFuture(new IllegalStateException()))
+        .toCompletableFuture()
+        .handle((r, e) -> e)
+        .join();
+    log.close();
+
+    final List<String> lines = tryToGetRethrow(() -> Files.readAllLines(file)).orElseThrow();
+
+    assertEquals(2, lines.size());
+    assertTrue(lines.get(0).matches("\\S+ GET /path\\?q=1 304 \\d+ /route -"));
+    assertTrue(lines.get(1).matches("\\S+ GET /failed 500 \\d+ /route -"));
+    assertEquals(2, log.written());
+    assertEquals(0, log.dropped());
+    tryToDoSilent(() -> Files.delete(file));
+  }
+
+  @Test
+  @DisplayName("test31")
+  void test31() {
+    final AtomicInteger calls = new AtomicInteger();
+    final Retries retries =
+        retries(
+            (request, requestBody, response) -> {
+              response.setStatus(calls.getAndIncrement() == 0 ? SERVICE_UNAVAILABLE : OK);
+              response.headers().set("X-Attempt", calls.get());
+
+              return completedFuture(empty());
+            },
+            ConfigFactory.empty());
+    final HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+
+    response.headers().set("X-Attempt", "0");
+    get(retries, response).toCompletableFuture().join();
+    assertEquals(OK, response.status());
+    assertEquals(list("2"), response.headers().getAll("X-Attempt"));
+    assertEquals(2, calls.get());
+    assertEquals(1, retries.retries());
+  }
+
+  @Test
+  @DisplayName("test32")
+  void test32() {
+    final AtomicInteger calls = new AtomicInteger();
+    final Retries retries =
+        retries(
+            (request, requestBody, response) -> {
+              calls.incrementAndGet();
+              response.setStatus(SERVICE_UNAVAILABLE);
+
+              return completedFuture(empty());
+            },
+            ConfigFactory.empty()
+                .withValue("attempts", fromAnyRef(3))
+                .withValue("burst", fromAnyRef(1)));
+    final HttpResponse first = new DefaultHttpResponse(HTTP_1_1, OK);
+    final HttpResponse second = new DefaultHttpResponse(HTTP_1_1, OK);
+
+    get(retries, first).toCompletableFuture().join();
+    get(retries, second).toCompletableFuture().join();
+    assertEquals(SERVICE_UNAVAILABLE, first.status());
+    assertEquals(SERVICE_UNAVAILABLE, second.status());
+    assertEquals(3, calls.get());
+    assertEquals(1, retries.retries());
+    assertEquals(2, retries.exhausted());
+  }
+
+  @Test
+  @DisplayName("test33")
+  void test33() {
+    final CompletableFuture<Boolean> closed = new CompletableFuture<>();
+    final AtomicInteger calls = new AtomicInteger();
+    final Retries retries =
+        retries(
+            new Balancer(
+                list(URI.create("http://localhost")),
+                uri ->
+                    (request, requestBody, response) -> {
+                      if (calls.getAndIncrement() != 100) {
+                        return completedFuture(empty());
+                      }
+
+                      final CompletableFuture<Publisher<ByteBuf>> slow = new CompletableFuture<>();
+
+                      slow.whenComplete(
+                          (r, e) -> closed.complete(e instanceof CancellationException));
+
+                      return slow;
+                    },
+                ConfigFactory.empty()),
+            ConfigFactory.empty()
+                .withValue("hedge.minDelay", fromAnyRef("1ms"))
+                .withValue("hedge.percentile", fromAnyRef(0.5)));
+
+    rangeExclusive(0, 100)
+        .forEach(
+            i ->
+                get(retries, new DefaultHttpResponse(HTTP_1_1, OK)).toCompletableFuture().join());
+    assertEquals(0, retries.hedges());
+    get(retries, new DefaultHttpResponse(HTTP_1_1, OK)).toCompletableFuture().join();
+    assertEquals(102, calls.get());
+    assertEquals(1, retries.hedges());
+    assertTrue(closed.orTimeout(5, SECONDS).join());
+  }
+
+  @Test
+  @DisplayName("test34")
+  void test34() {
+    final String text = "compressible text ".repeat(100);
+    final RequestHandler handler =
+        Compression.compressed(
+            (request, requestBody, response) -> {
+              response
+                  .headers()
+                  .set(CONTENT_LENGTH, text.length())
+                  .set("Content-Type", "text/plain; charset=UTF-8")
+                  .set("Vary", "Origin");
+
+              return completedFuture(Source.of(copiedBuffer(text, UTF_8)));
+            },
+            ConfigFactory.empty().withValue("compression.minSize", fromAnyRef(0)),
+            "/",
+            Metrics.metrics(ConfigFactory.empty()));
+    final HttpRequest request = nettyRequest("/");
+    final HttpResponse gzipped = new DefaultHttpResponse(HTTP_1_1, OK);
+    final HttpResponse identity = new DefaultHttpResponse(HTTP_1_1, OK);
+
+    request.headers().set("Accept-Encoding", "gzip, deflate");
+
+    final ByteBuf compressed =
+        BodyBuffer.buffer(handler.apply(request, empty(), gzipped).toCompletableFuture().join())
+            .toCompletableFuture()
+            .join();
+    final byte[] bytes = new byte[compressed.readableBytes()];
+
+    compressed.readBytes(bytes).release();
+    assertEquals("gzip", gzipped.headers().get("Content-Encoding"));
+    assertEquals(list("Origin", "Accept-Encoding"), gzipped.headers().getAll("Vary"));
+    assertEquals(null, gzipped.headers().get(CONTENT_LENGTH));
+    assertTrue(bytes.length < text.length());
+    assertEquals(
+        text,
+        tryToGetRethrow(
+                () -> {
+                  try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+                    return new String(in.readAllBytes(), UTF_8);
+                  }
+                })
+            .orElseThrow());
+    assertEquals(text, string(get(handler, identity).toCompletableFuture().join()));
+    assertEquals(null, identity.headers().get("Content-Encoding"));
+    assertEquals(list("Origin", "Accept-Encoding"), identity.headers().getAll("Vary"));
+  }
+
+  @Test
+  @DisplayName("test35")
+  void test35() {
+    final HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+    final CompletableFuture<Publisher<ByteBuf>> upstream = new CompletableFuture<>();
+    final RequestHandler handler =
+        Timeouts.deadline(
+            Server.handler(
+                list(plugin(h -> new RequestResult().withRequest(h))),
+                (request, requestBody, resp) -> upstream,
+                Execution.execution(ConfigFactory.empty())),
+            ConfigFactory.empty().withValue("deadline", fromAnyRef("50ms")));
+
+    get(handler, response).toCompletableFuture().join();
+
+    assertEquals(GATEWAY_TIMEOUT, response.status());
+    assertTrue(upstream.isCancelled());
+  }
+
+  @Test
+  @DisplayName("test36")
+  void test36() {
+    final AtomicInteger calls = new AtomicInteger();
+    final ResponseCache cache =
+        (ResponseCache)
+            ResponseCache.cached(
+                (request, requestBody, response) -> {
+                  final String language = request.headers().get("Accept-Language");
+
+                  calls.incrementAndGet();
+                  response
+                      .headers()
+                      .set(CONTENT_LENGTH, language.length())
+                      .set("Cache-Control", "max-age=60")
+                      .set("Vary", "Accept-Language");
+
+                  if (request.uri().equals("/cookie")) {
+                    response.headers().set("Set-Cookie", "session=1");
+                  }
+
+                  return completedFuture(Source.of(copiedBuffer(language, UTF_8)));
+                },
+                ConfigFactory.empty().withValue("responseCache.maxMemory", fromAnyRef(1024)),
+                "/",
+                Metrics.metrics(ConfigFactory.empty()));
+
+    list("en", "fr", "en", "fr")
+        .forEach(
+            language -> {
+              final HttpRequest request = nettyRequest("/vary");
+
+              request.headers().set("Accept-Language", language);
+              assertEquals(
+                  language,
+                  string(
+                      cache
+                          .apply(request, empty(), new DefaultHttpResponse(HTTP_1_1, OK))
+                          .toCompletableFuture()
+                          .join()));
+            });
+    assertEquals(2, calls.get());
+    assertEquals(2, cache.hits());
+
+    rangeExclusive(0, 2)
+        .forEach(
+            i -> {
+              final HttpRequest request = nettyRequest("/cookie");
+
+              request.headers().set("Accept-Language", "en");
+              string(
+                  cache
+                      .apply(request, empty(), new DefaultHttpResponse(HTTP_1_1, OK))
+                      .toCompletableFuture()
+                      .join());
+            });
+    assertEquals(4, calls.get());
+    assertEquals(2, cache.hits());
+    cache.close();
+  }
+
+  @Test
+  @DisplayName("test37")
+  void test37() {
+    final String text = "cached compressible text ".repeat(100);
+    final Compression handler =
+        (Compression)
+            Compression.compressed(
+                (request, requestBody, response) -> {
+                  response
+                      .headers()
+                      .set(CONTENT_LENGTH, text.length())
+                      .set("Content-Type", "text/plain")
+                      .set("ETag", "\"v1\"")
+                      .set("Vary", "accept-encoding");
+
+                  return completedFuture(Source.of(copiedBuffer(text, UTF_8)));
+                },
+                ConfigFactory.empty()
+                    .withValue("compression.minSize", fromAnyRef(0))
+                    .withValue("compression.cache.maxMemory", fromAnyRef("1MiB")),
+                "/",
+                Metrics.metrics(ConfigFactory.empty()));
+
+    rangeExclusive(0, 2)
+        .forEach(
+            i -> {
+              final HttpRequest request = nettyRequest("/");
+              final HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+
+              request.headers().set("Accept-Encoding", "gzip");
+
+              final ByteBuf compressed =
+                  BodyBuffer.buffer(
+                          handler.apply(request, empty(), response).toCompletableFuture().join())
+                      .toCompletableFuture()
+                      .join();
+
+              assertEquals("gzip", response.headers().get("Content-Encoding"));
+              assertEquals(list("accept-encoding"), response.headers().getAll("Vary"));
+              assertEquals(
+                  String.valueOf(compressed.readableBytes()),
+                  response.headers().get(CONTENT_LENGTH));
+              assertEquals(text, gunzip(compressed));
+            });
+
+    handler.close();
+  }
 }
@@ -0,0 +1,104 @@
+package net.pincette.http.headers;
+
+import static com.typesafe.config.ConfigValueFactory.fromAnyRef;
+import static io.netty.buffer.Unpooled.wrappedBuffer;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static java.lang.Integer.parseInt;
+import static java.net.http.HttpClient.newHttpClient;
+import static java.net.http.HttpRequest.BodyPublishers.ofString;
+import static java.net.http.HttpResponse.BodyHandlers.ofByteArray;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.time.Duration.ofMillis;
+import static java.time.Duration.ofSeconds;
+import static java.time.Instant.now;
+import static java.util.logging.Level.WARNING;
+import static net.pincette.http.headers.Application.LOGGER;
+import static net.pincette.netty.http.Util.simpleResponse;
+import static net.pincette.util.Util.initLogging;
+import static net.pincette.util.Util.tryToGetSilent;
+
+import com.typesafe.config.ConfigFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.time.Instant;
+import net.pincette.netty.http.HttpServer;
+import net.pincette.rs.Source;
+
+/**
+ * A workload that runs the proxy against a local stub upstream, so that the classes of a typical
+ * request path are loaded. The <code>cds</code> build profile compiles it and runs it with <code>
+ * -XX:ArchiveClassesAtExit</code> to produce the AppCDS archive of the Docker image. The proxy has
+ * a fixed configuration that only forwards, so that the archive doesn't depend on the
+ * configuration of the build machine. The optional argument is the number of requests.
+ *
+ * @author Werner Donné
+ */
+public class Training {
+  private static final String[] METHODS = {"GET", "POST", "PUT", "DELETE"};
+  private static final int PROXY_PORT = 19020;
+  private static final int UPSTREAM_PORT = 19021;
+
+  private Training() {}
+
+  public static void main(final String[] args) {
+    final int requests = args.length == 1 ? parseInt(args[0]) : 1000;
+    final byte[] body = "training".getBytes(UTF_8);
+    final HttpServer upstream =
+        new HttpServer(
+            UPSTREAM_PORT,
+            (request, requestBody, response) ->
+                simpleResponse(response, OK, Source.of(wrappedBuffer(body))));
+    final Server proxy =
+        new Server(
+            PROXY_PORT,
+            ConfigFactory.empty()
+                .withValue("forwardTo", fromAnyRef("http://localhost:" + UPSTREAM_PORT)));
+    final HttpClient client = newHttpClient();
+
+    initLogging();
+    upstream.run();
+    proxy.run();
+
+    if (!waitUntilUp(client)) {
+      LOGGER.log(WARNING, "The proxy didn't come up for the training run");
+    }
+
+    for (int i = 0; i < requests; ++i) {
+      final int n = i;
+
+      tryToGetSilent(() -> client.send(request(n), ofByteArray()));
+    }
+
+    proxy.close();
+    upstream.close();
+    LOGGER.info(() -> "Sent " + requests + " training requests");
+  }
+
+  private static HttpRequest request(final int n) {
+    return HttpRequest.newBuilder()
+        .uri(URI.create("http://localhost:" + PROXY_PORT + "/training/" + n + "?q=" + n))
+        .header("Accept", "*/*")
+        .header("Content-Type", "text/plain")
+        .method(METHODS[n % METHODS.length], ofString("training"))
+        .build();
+  }
+
+  private static boolean waitUntilUp(final HttpClient client) {
+    final Instant deadline = now().plus(ofSeconds(10));
+
+    while (now().isBefore(deadline)) {
+      if (tryToGetSilent(() -> client.send(request(0), ofByteArray())).isPresent()) {
+        return true;
+      }
+
+      tryToGetSilent(
+          () -> {
+            Thread.sleep(ofMillis(100).toMillis());
+            return true;
+          });
+    }
+
+    return false;
+  }
+}